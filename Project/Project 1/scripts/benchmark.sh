@@ -0,0 +1,28 @@
+#! /bin/bash
+
+# Benchmark script
+# To be executed in the root of the build tree
+# Requires at most one argument: the benchmark to run (codec, storage, encoding, execution or chunkstore)
+# Runs the given benchmark, or all of them
+
+argc=$#
+
+if ((argc == 0)); then
+    benchmarks="codec storage encoding execution chunkstore"
+elif ((argc == 1)); then
+    benchmarks=$1
+else
+    echo "Usage: $0 [codec|storage|encoding|execution|chunkstore]"
+    exit 1
+fi
+
+for benchmark in $benchmarks; do
+    case $benchmark in
+        codec) java benchmark.CodecBenchmark ;;
+        storage) java benchmark.StorageBenchmark ;;
+        encoding) java benchmark.MessageEncodingBenchmark ;;
+        execution) java benchmark.ExecutionModeBenchmark ;;
+        chunkstore) java benchmark.ChunkStoreBenchmark ;;
+        *) echo "Unknown benchmark: $benchmark"; exit 1 ;;
+    esac
+done
@@ -0,0 +1,110 @@
+package benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Minimal harness shared by the benchmarks.
+ * Every measurement first runs the operation for a warm-up round, so that JIT compilation isn't measured,
+ * and then for ROUNDS measured rounds, reporting the best and the median round. Results of the operations
+ * are accumulated into a sink so the JIT can't discard them.
+ */
+public class BenchmarkRunner {
+    private static final int ROUNDS = 5;
+    private static volatile long sink;
+
+    public interface Operation {
+        /**
+         * @param i Number of the iteration
+         * @return Any result of the operation
+         */
+        long run(int i);
+    }
+
+    /**
+     * Measures the average time of an operation on a single thread
+     *
+     * @param name Name of the measurement
+     * @param iterations Iterations per round
+     */
+    public static void measure(String name, int iterations, Operation operation) {
+        double[] rounds = new double[ROUNDS];
+
+        runRound(iterations, operation); // Warm up
+
+        for (int round = 0; round < ROUNDS; round++)
+            rounds[round] = (double) runRound(iterations, operation) / iterations;
+
+        Arrays.sort(rounds);
+        System.out.printf("%-50s %12.1f ns/op (best %.1f)\n", name, rounds[ROUNDS / 2], rounds[0]);
+    }
+
+    /**
+     * Measures the throughput of an operation run by several threads at once
+     *
+     * @param name Name of the measurement
+     * @param threads Number of threads
+     * @param iterations Iterations per thread and round
+     */
+    public static void measureConcurrent(String name, int threads, int iterations, Operation operation)
+            throws InterruptedException {
+        double[] rounds = new double[ROUNDS];
+
+        runConcurrentRound(threads, iterations, operation); // Warm up
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long elapsed = runConcurrentRound(threads, iterations, operation);
+            rounds[round] = (double) threads * iterations / elapsed * 1e9;
+        }
+
+        Arrays.sort(rounds);
+        System.out.printf("%-50s %12.0f ops/s (best %.0f)\n", name + " [" + threads + " threads]",
+                rounds[ROUNDS / 2], rounds[ROUNDS - 1]);
+    }
+
+    private static long runRound(int iterations, Operation operation) {
+        long result = 0;
+        long start = System.nanoTime();
+
+        for (int i = 0; i < iterations; i++)
+            result += operation.run(i);
+
+        long elapsed = System.nanoTime() - start;
+        sink += result;
+
+        return elapsed;
+    }
+
+    private static long runConcurrentRound(int threads, int iterations, Operation operation) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            int offset = t * iterations; // Each thread gets its own iteration numbers
+
+            new Thread(() -> {
+                long result = 0;
+
+                try {
+                    start.await();
+
+                    for (int i = 0; i < iterations; i++)
+                        result += operation.run(offset + i);
+                }
+
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                sink += result;
+                done.countDown();
+            }, "benchmark-" + t).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+
+        return System.nanoTime() - begin;
+    }
+}
@@ -0,0 +1,119 @@
+package benchmark;
+
+import peer.storage.ChunkStore;
+import peer.storage.FileChunkStore;
+import peer.storage.SegmentChunkStore;
+import peer.storage.Storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Compares the chunk stores: writing, reading and deleting the chunks of a file, one file per chunk against
+ * segment files. Writes and reads of random chunks are also measured from many threads at once.
+ * Every round writes the same chunks again, so the segments also hold the replaced chunks. The segments
+ * store forces every write to disk, grouping the writes of concurrent threads, and the files store doesn't.
+ *
+ * Usage: java benchmark.ChunkStoreBenchmark [chunks] [max_threads]
+ */
+public class ChunkStoreBenchmark {
+    private static final String FILE_ID = "f".repeat(64);
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int chunks = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int max_threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        Path directory = Files.createTempDirectory("chunk-store-benchmark");
+
+        try {
+            System.out.printf("%d chunks of %d bytes\n", chunks, Storage.MAX_CHUNK_SIZE);
+
+            try (ChunkStore store = new FileChunkStore(directory + "/files/")) {
+                run("files", store, chunks, max_threads);
+            }
+
+            try (ChunkStore store = new SegmentChunkStore(directory + "/segments/")) {
+                run("segments", store, chunks, max_threads);
+            }
+        }
+
+        finally {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static void run(String name, ChunkStore store, int chunks, int max_threads) throws InterruptedException {
+        ByteBuffer body = ByteBuffer.allocateDirect(Storage.MAX_CHUNK_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Storage.MAX_CHUNK_SIZE);
+
+        BenchmarkRunner.measure(name + ": write", chunks, i -> {
+            body.clear();
+            write(store, i, body);
+            return 1;
+        });
+
+        BenchmarkRunner.measure(name + ": read (random)", chunks, i -> {
+            buffer.clear();
+            return read(store, random(i, chunks), buffer);
+        });
+
+        for (int threads = 1; threads <= max_threads; threads *= 2) {
+            ThreadLocal<ByteBuffer> bodies = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(Storage.MAX_CHUNK_SIZE));
+
+            BenchmarkRunner.measureConcurrent(name + ": write", threads, chunks / threads, i -> {
+                ByteBuffer thread_body = bodies.get();
+                thread_body.clear();
+                write(store, random(i, chunks), thread_body);
+                return 1;
+            });
+        }
+
+        for (int threads = 1; threads <= max_threads; threads *= 2) {
+            ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(Storage.MAX_CHUNK_SIZE));
+
+            BenchmarkRunner.measureConcurrent(name + ": read (random)", threads, chunks, i -> {
+                ByteBuffer thread_buffer = buffers.get();
+                thread_buffer.clear();
+                return read(store, random(i, chunks), thread_buffer);
+            });
+        }
+
+        long start = System.nanoTime();
+        store.deleteFile(FILE_ID);
+        System.out.printf("%-50s %12.1f ms\n", name + ": delete file", (System.nanoTime() - start) / 1e6);
+    }
+
+    private static void write(ChunkStore store, int chunk_no, ByteBuffer body) {
+        try {
+            store.write(FILE_ID, chunk_no, body);
+        }
+
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long read(ChunkStore store, int chunk_no, ByteBuffer buffer) {
+        try {
+            return store.read(FILE_ID, chunk_no, buffer) ? buffer.position() : 0;
+        }
+
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return Chunk number spread over all chunks, the same for the same iteration
+     */
+    private static int random(int i, int chunks) {
+        return (int) ((i * 0x9E3779B97F4A7C15L >>> 32) % chunks);
+    }
+}
@@ -0,0 +1,48 @@
+package benchmark;
+
+import messages.Message;
+import messages.MessageHeader;
+import messages.PutChunkMessage;
+import peer.storage.Storage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures decoding and encoding of a PUTCHUNK datagram with a full chunk.
+ * Decoding compares the string based helpers of Message, still used to read TCP messages, with the
+ * in-place MessageHeader parser used by the channels.
+ *
+ * Usage: java benchmark.CodecBenchmark [iterations]
+ */
+public class CodecBenchmark {
+    private static final String FILE_ID = "85ef11fb4103bde5a3ccca048627876b36e0b9424b13a52876cfb10bc73ee2bb";
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        byte[] chunk = new byte[Storage.MAX_CHUNK_SIZE];
+        ThreadLocalRandom.current().nextBytes(chunk);
+
+        PutChunkMessage message = new PutChunkMessage("1.0", 1, FILE_ID, 2, 42);
+        byte[] datagram = message.getBytes(chunk, chunk.length);
+        int header_length = message.encodeHeader().length;
+        ByteBuffer body = ByteBuffer.wrap(chunk);
+        int copy_iterations = Math.max(1, iterations / 100); // Operations that copy the whole chunk
+
+        System.out.printf("%d iterations, %d byte datagram\n", iterations, datagram.length);
+
+        // Decoding
+        BenchmarkRunner.measure("Message.getHeaderFields", iterations, i -> Message.getHeaderFields(datagram).length);
+        BenchmarkRunner.measure("Message.getHeaderBytes", iterations, i -> Message.getHeaderBytes(datagram).length);
+        BenchmarkRunner.measure("Message.getBodyBytes", copy_iterations,
+                i -> Message.getBodyBytes(datagram, datagram.length, header_length).length);
+        BenchmarkRunner.measure("MessageHeader.parse", iterations, i -> {
+            MessageHeader header = MessageHeader.parse(ByteBuffer.wrap(datagram));
+            return header.getChunk_no() + header.getFile_id().length();
+        });
+
+        // Encoding
+        BenchmarkRunner.measure("Message.getBytes(byte[])", copy_iterations, i -> message.getBytes(chunk, chunk.length).length);
+        BenchmarkRunner.measure("Message.getBytes(ByteBuffer)", copy_iterations, i -> message.getBytes(body).length);
+    }
+}
@@ -0,0 +1,101 @@
+package benchmark;
+
+import peer.storage.Storage;
+import utils.BoundedExecutor;
+import utils.BufferPool;
+import utils.ExecutionMode;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares platform and virtual thread execution of a burst of concurrent GETCHUNK requests.
+ * Each request is handled like GetChunkMessageHandler in blocking style: it reads the chunk from disk,
+ * waiting on the file read, and then sleeps the random 0-400 ms reply delay.
+ *
+ * Usage: java benchmark.ExecutionModeBenchmark [requests] [platform_threads]
+ */
+public class ExecutionModeBenchmark {
+    private static final int MAX_REPLY_DELAY = 400; // ms
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int platform_threads = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+
+        Path chunk = Files.createTempFile("chunk", null);
+        Files.write(chunk, new byte[Storage.MAX_CHUNK_SIZE]);
+
+        try {
+            System.out.printf("%d concurrent GETCHUNK requests\n", requests);
+            run(ExecutionMode.PLATFORM, requests, platform_threads, chunk);
+            run(ExecutionMode.VIRTUAL, requests, platform_threads, chunk);
+        }
+
+        finally {
+            Files.delete(chunk);
+        }
+    }
+
+    private static void run(ExecutionMode mode, int requests, int threads, Path chunk) throws InterruptedException {
+        BoundedExecutor executor = new BoundedExecutor("bench", threads, requests, Thread.NORM_PRIORITY, mode);
+
+        if (executor.getMode() != mode) {
+            System.out.printf("%-8s skipped: not supported by this Java runtime\n", mode);
+            executor.shutdownNow();
+            return;
+        }
+
+        BufferPool buffers = new BufferPool(Storage.MAX_CHUNK_SIZE, threads, true);
+        CountDownLatch done = new CountDownLatch(requests);
+        ThreadMXBean thread_bean = ManagementFactory.getThreadMXBean();
+        thread_bean.resetPeakThreadCount();
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < requests; i++)
+            executor.execute(() -> {
+                try {
+                    handleGetChunk(chunk, buffers);
+                }
+
+                finally {
+                    done.countDown();
+                }
+            });
+
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+
+        double seconds = elapsed / 1e9;
+        System.out.printf("%-8s %8.2f s %10.0f requests/s   peak platform threads: %d\n",
+                mode, seconds, requests / seconds, thread_bean.getPeakThreadCount());
+    }
+
+    private static void handleGetChunk(Path chunk, BufferPool buffers) {
+        ByteBuffer buffer = buffers.lease();
+
+        try (AsynchronousFileChannel fileChannel = AsynchronousFileChannel.open(chunk, StandardOpenOption.READ)) {
+            fileChannel.read(buffer, 0).get(); // Blocking file wait
+            Thread.sleep(ThreadLocalRandom.current().nextInt(MAX_REPLY_DELAY)); // Blocking reply delay
+        }
+
+        catch (IOException | InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+
+        finally {
+            buffers.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package benchmark;
+
+import messages.PutChunkMessage;
+import peer.storage.Storage;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares the former and the current ways of encoding and sending a PUTCHUNK message.
+ * The former header encoding goes through String.format and a UTF-8 conversion, and every send copies the
+ * header and the body into a new array. The current one encodes the header straight into bytes, caches them
+ * for retransmissions, and sends header and body with a single gathering write.
+ *
+ * Usage: java benchmark.MessageEncodingBenchmark [iterations]
+ */
+public class MessageEncodingBenchmark {
+    private static final String FILE_ID = "85ef11fb4103bde5a3ccca048627876b36e0b9424b13a52876cfb10bc73ee2bb";
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        byte[] chunk = new byte[Storage.MAX_CHUNK_SIZE];
+        ThreadLocalRandom.current().nextBytes(chunk);
+        ByteBuffer body = ByteBuffer.wrap(chunk);
+
+        System.out.printf("%d iterations, %d byte chunks\n", iterations, chunk.length);
+
+        // Header encoding
+        BenchmarkRunner.measure("Header String.format", iterations, i -> legacyHeader(newMessage(i)).length);
+        BenchmarkRunner.measure("Header encoded", iterations, i -> newMessage(i).encodeHeader().length);
+
+        PutChunkMessage message = newMessage(0);
+        BenchmarkRunner.measure("Header cached", iterations, i -> message.encodeHeader().length);
+
+        // Whole message, as sent on every retransmission
+        int message_iterations = Math.max(1, iterations / 100);
+        BenchmarkRunner.measure("Message String.format + copy", message_iterations, i -> legacyBytes(message, chunk).length);
+        BenchmarkRunner.measure("Message encoded + copy", message_iterations, i -> message.getBytes(body).length);
+
+        // Sending, to a loopback socket that is never read
+        try (DatagramChannel receiver = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             DatagramChannel sender = DatagramChannel.open().connect(receiver.getLocalAddress())) {
+            BenchmarkRunner.measure("Send copied message", message_iterations, i -> {
+                try {
+                    return sender.write(ByteBuffer.wrap(message.getBytes(body)));
+                }
+
+                catch (IOException e) {
+                    return 0;
+                }
+            });
+
+            BenchmarkRunner.measure("Send gathering write", message_iterations, i -> {
+                try {
+                    return sender.write(new ByteBuffer[]{ByteBuffer.wrap(message.encodeHeader()), body.duplicate()});
+                }
+
+                catch (IOException e) {
+                    return 0;
+                }
+            });
+        }
+    }
+
+    private static PutChunkMessage newMessage(int chunk_no) {
+        return new PutChunkMessage("1.0", 1, FILE_ID, 2, chunk_no);
+    }
+
+    /**
+     * Header encoding before messages encoded their own headers
+     */
+    private static byte[] legacyHeader(PutChunkMessage message) {
+        String content = String.format("%d %d", message.getChunk_no(), message.getReplication_degree());
+
+        return String.format("%s %s %d %s %s %s %s", message.getVersion(), "PUTCHUNK", message.getSender_id(),
+                message.getFile_id(), content, "\r\n", "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] legacyBytes(PutChunkMessage message, byte[] body) {
+        byte[] header = legacyHeader(message);
+        byte[] bytes = new byte[header.length + body.length];
+
+        System.arraycopy(header, 0, bytes, 0, header.length);
+        System.arraycopy(body, 0, bytes, header.length, body.length);
+
+        return bytes;
+    }
+}
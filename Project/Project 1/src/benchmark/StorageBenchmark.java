@@ -0,0 +1,102 @@
+package benchmark;
+
+import peer.storage.BackedUpFile;
+import peer.storage.Chunk;
+import peer.storage.Storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Measures the Storage operations on the message handling hot paths: hashing a file into a BackedUpFile,
+ * checking if a file is backed up, updating replication degrees and reserving space for chunks from many handler
+ * threads at once, and planning a RECLAIM.
+ * The storage has no journal, so nothing is written to disk.
+ *
+ * Usage: java benchmark.StorageBenchmark [files] [max_threads]
+ */
+public class StorageBenchmark {
+    private static final int CHUNKS = 1000; // Chunks of the files whose replication degrees are updated
+    private static final int PEERS = 16; // Peers sending STOREDs and REMOVEDs
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int number_of_files = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int max_threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        Path directory = Files.createTempDirectory("storage-benchmark");
+        Path[] files = new Path[number_of_files];
+
+        for (int i = 0; i < number_of_files; i++)
+            files[i] = Files.write(directory.resolve("file" + i), new byte[]{(byte) i});
+
+        try {
+            System.out.printf("%d backed up files\n", number_of_files);
+            run(files, max_threads);
+        }
+
+        finally {
+            for (Path file : files)
+                Files.delete(file);
+
+            Files.delete(directory);
+        }
+    }
+
+    private static void run(Path[] files, int max_threads) throws InterruptedException {
+        Storage storage = new Storage(1, "1.0");
+
+        // Hashing
+        BenchmarkRunner.measure("new BackedUpFile (SHA-256 of metadata)", files.length,
+                i -> new BackedUpFile(files[i % files.length], 1).getId().length());
+
+        for (Path file : files)
+            storage.addBackedUpFile(new BackedUpFile(file, 1));
+
+        // Admission checks
+        String backed_up_id = new BackedUpFile(files[files.length / 2], 1).getId();
+        String missing_id = "0".repeat(backed_up_id.length());
+
+        BenchmarkRunner.measure("isFileBackedUp (backed up)", 10000,
+                i -> storage.isFileBackedUp(backed_up_id) ? 1 : 0);
+        BenchmarkRunner.measure("isFileBackedUp (not backed up)", 10000,
+                i -> storage.isFileBackedUp(missing_id) ? 1 : 0);
+
+        // Replication degree updates, as done by the STORED and REMOVED handlers
+        String stored_id = "f".repeat(backed_up_id.length());
+
+        for (int chunk_no = 0; chunk_no < CHUNKS; chunk_no++)
+            storage.addStoredChunk(storage.getFilePath(stored_id, chunk_no),
+                    new Chunk(stored_id, chunk_no, Storage.MAX_CHUNK_SIZE, 1, 1));
+
+        for (int threads = 1; threads <= max_threads; threads *= 2) {
+            BenchmarkRunner.measureConcurrent("updateReplicationDegree (backed up)", threads, 100000, i -> {
+                storage.updateReplicationDegree(backed_up_id, i % CHUNKS, i % PEERS, (i & 1) == 0);
+                return 1;
+            });
+
+            BenchmarkRunner.measureConcurrent("updateReplicationDegree (stored)", threads, 100000, i -> {
+                storage.updateReplicationDegree(stored_id, i % CHUNKS, i % PEERS, (i & 1) == 0);
+                return 1;
+            });
+        }
+
+        // Space reservations, as done by the PUTCHUNK handlers around writing a chunk
+        long used_space = storage.getUsedSpace().get();
+
+        for (int threads = 1; threads <= max_threads; threads *= 2)
+            BenchmarkRunner.measureConcurrent("reserveChunkSpace + releaseSpace", threads, 100000, i -> {
+                if (!storage.reserveChunkSpace(stored_id, Storage.MAX_CHUNK_SIZE))
+                    return 0;
+
+                storage.releaseSpace(Storage.MAX_CHUNK_SIZE);
+                return 1;
+            });
+
+        System.out.printf("Used space drift after reservations: %d bytes\n", storage.getUsedSpace().get() - used_space);
+
+        // Reclaim planning, which only visits the chunks it removes
+        storage.setMaxSpace(used_space - 10L * Storage.MAX_CHUNK_SIZE);
+        BenchmarkRunner.measure("planReclaim (10 of " + CHUNKS + " chunks)", 10000, i -> storage.planReclaim().size());
+    }
+}
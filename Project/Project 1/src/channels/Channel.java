@@ -3,42 +3,62 @@ package channels;
 import handlers.MessageHandler;
 import handlers.RemovedMessageHandler;
 import peer.Peer;
+import utils.BoundedExecutor;
+import utils.BufferPool;
 import utils.Observer;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 public abstract class Channel implements Runnable {
     protected MulticastSocket socket;
+    protected DatagramChannel send_channel; // Connected to the group, for gathering sends
     protected boolean running;
     protected String host;
     protected int port;
     protected Peer peer;
     protected InetAddress group;
     protected final static int MAX_SIZE = 66000;
-    protected byte[] buf = new byte[MAX_SIZE];
-    protected final ExecutorService pool;
+    protected final static int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024; // Absorbs bursts of windowed PUTCHUNKs
+    protected final static int POOLED_BUFFERS = 64;
+    protected final static int HANDLER_QUEUE_CAPACITY = 256;
+    protected final static long HANDLER_MAX_WAIT = 100; // ms the receive loop waits for room before dropping a message
+    protected final BufferPool receive_buffers;
+    protected final BoundedExecutor pool;
     private final Set<Observer> observers;
 
-    public Channel(String host, int port, Peer peer) {
+    /**
+     * @param name Name of the channel
+     * @param handler_threads Number of threads handling the channel's messages
+     * @param handler_priority Priority of the threads handling the channel's messages
+     */
+    public Channel(String host, int port, Peer peer, String name, int handler_threads, int handler_priority) {
         this.host = host;
         this.port = port;
         this.peer = peer;
-        pool = Executors.newCachedThreadPool();
+        pool = new BoundedExecutor(name, handler_threads, HANDLER_QUEUE_CAPACITY, handler_priority, HANDLER_MAX_WAIT);
+        receive_buffers = new BufferPool(MAX_SIZE, POOLED_BUFFERS);
         observers = ConcurrentHashMap.newKeySet();
     }
 
     public int start() {
         try {
             socket = new MulticastSocket(port);
+            socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
             group = InetAddress.getByName(host);
             socket.joinGroup(group);
+            send_channel = DatagramChannel.open(group.getAddress().length == 4 ?
+                    StandardProtocolFamily.INET : StandardProtocolFamily.INET6);
+            send_channel.connect(new InetSocketAddress(group, port));
         }
 
         catch (IOException e) {
@@ -62,6 +82,14 @@ public abstract class Channel implements Runnable {
         }
 
         socket.close();
+
+        try {
+            send_channel.close();
+        }
+
+        catch (IOException e) {
+            System.err.println("ERROR: Failed to close channel.");
+        }
     }
 
     @Override
@@ -71,11 +99,24 @@ public abstract class Channel implements Runnable {
 
         running = true;
 
+        ByteBuffer buffer = receive_buffers.lease();
+        DatagramPacket packet = new DatagramPacket(buffer.array(), buffer.capacity());
+
         while (running) {
             try {
-                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                packet.setData(buffer.array(), 0, buffer.capacity());
                 socket.receive(packet); // Receive packet
-                parseMessage(packet.getData(), packet.getLength());
+
+                buffer.clear();
+                buffer.limit(packet.getLength());
+
+                if (parseMessage(buffer, packet.getAddress())) // Buffer was handed over to a handler
+                    buffer = receive_buffers.lease();
+            }
+
+            catch (RejectedExecutionException e) {
+                // Handler never ran, so the buffer is still owned by the loop
+                System.err.println("WARNING: Dropped message: " + e.getMessage());
             }
 
             catch (IOException e) {
@@ -86,10 +127,17 @@ public abstract class Channel implements Runnable {
     }
 
     public void send(byte[] buffer) {
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, group, port);
+        send(ByteBuffer.wrap(buffer));
+    }
 
+    /**
+     * Sends the contents of several buffers as a single datagram, without copying them into one array
+     *
+     * @param buffers Parts of the message, from their positions to their limits. The positions are advanced
+     */
+    public void send(ByteBuffer... buffers) {
         try {
-            socket.send(packet);
+            send_channel.write(buffers);
         }
 
         catch (IOException e) {
@@ -97,9 +145,20 @@ public abstract class Channel implements Runnable {
         }
     }
 
-    protected abstract void parseMessage(byte[] msg, int msg_len);
+    /**
+     * Parses and dispatches a received message
+     *
+     * @param packet Receive buffer, from position 0 to the length of the message
+     * @param sender Address the message was sent from
+     * @return true if a handler took ownership of the buffer, and will release it back to the pool
+     */
+    protected abstract boolean parseMessage(ByteBuffer packet, InetAddress sender);
+
+    public BoundedExecutor getHandlerPool() {
+        return pool;
+    }
 
-    void notifyObserver(String file_id, int chunk_no) {
+    public void notifyObserver(String file_id, int chunk_no) {
         for (Observer observer : observers)
             observer.notify(file_id, chunk_no);
     }
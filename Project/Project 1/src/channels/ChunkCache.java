@@ -0,0 +1,113 @@
+package channels;
+
+import utils.Pair;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded cache of the chunk bodies received on the MDR channel for the files this peer is restoring.
+ * Entries are evicted least recently used first when the cache holds more than MAX_BYTES of bodies or
+ * MAX_ENTRIES entries, and when they were last put longer than TTL ago.
+ */
+public class ChunkCache {
+    public static final long MAX_BYTES = Long.getLong("peer.chunk_cache_size", 8 * 1024 * 1024);
+    public static final long TTL = Long.getLong("peer.chunk_cache_ttl", 10000); // ms
+    private static final int MAX_ENTRIES = 65536;
+    private final LinkedHashMap<Pair<String, Integer>, Entry> entries; // In access order
+    private final ConcurrentHashMap<String, AtomicInteger> restoring; // Restores in progress, by file id
+    private long bytes;
+    private long evictions;
+
+    private static class Entry {
+        private final byte[] body;
+        private final long touched; // ms
+
+        Entry(byte[] body, long touched) {
+            this.body = body;
+            this.touched = touched;
+        }
+    }
+
+    public ChunkCache() {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.restoring = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Starts keeping the bodies of the chunks of a file
+     */
+    public void retain(String file_id) {
+        restoring.computeIfAbsent(file_id, id -> new AtomicInteger(0)).incrementAndGet();
+    }
+
+    /**
+     * Stops keeping the bodies of the chunks of a file, once no restore of the file needs them
+     */
+    public void release(String file_id) {
+        restoring.computeIfPresent(file_id, (id, count) -> count.decrementAndGet() == 0 ? null : count);
+    }
+
+    public boolean isRetained(String file_id) {
+        return restoring.containsKey(file_id);
+    }
+
+    /**
+     * Keeps the body of a received chunk until it is taken or evicted
+     */
+    public synchronized void put(String file_id, int chunk_no, byte[] body) {
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(body, now);
+        Entry old = entries.put(Pair.create(file_id, chunk_no), entry);
+
+        if (old != null)
+            bytes -= old.body.length;
+
+        bytes += body.length;
+
+        evict(now);
+    }
+
+    /**
+     * Removes a received chunk
+     *
+     * @return Body of the chunk, or null if it wasn't received
+     */
+    public synchronized byte[] take(String file_id, int chunk_no) {
+        Entry entry = entries.remove(Pair.create(file_id, chunk_no));
+
+        if (entry == null)
+            return null;
+
+        bytes -= entry.body.length;
+
+        return entry.body;
+    }
+
+    /**
+     * Drops least recently used entries while the cache is over its limits or they have expired
+     */
+    private void evict(long now) {
+        Iterator<Entry> iterator = entries.values().iterator();
+
+        while (iterator.hasNext()) {
+            Entry eldest = iterator.next();
+
+            if (bytes <= MAX_BYTES && entries.size() <= MAX_ENTRIES && now - eldest.touched <= TTL)
+                break;
+
+            bytes -= eldest.body.length;
+
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized String getState() {
+        return "ENTRIES: " + entries.size() + '\n' +
+                "BYTES: " + bytes + '\n' +
+                "EVICTIONS: " + evictions + '\n';
+    }
+}
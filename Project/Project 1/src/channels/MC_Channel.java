@@ -4,25 +4,29 @@ import handlers.*;
 import messages.*;
 import peer.Peer;
 
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
 public class MC_Channel extends Channel {
+    private static final int HANDLER_THREADS = 8;
+
     public MC_Channel(String host, int port, Peer peer) {
-        super(host, port, peer);
+        // Control messages are handled by their own threads, so they never queue behind MDB and MDR handlers.
+        // GETCHUNKs read chunks and send them, so they are handled with the MDR handlers instead.
+        // The higher thread priority is only a hint, which the OS scheduler may ignore
+        super(host, port, peer, "MC", HANDLER_THREADS, Thread.MAX_PRIORITY);
     }
 
     @Override
-    protected void parseMessage(byte[] msg, int msg_len) {
-        String[] header_fields = Message.getHeaderFields(msg);
+    protected boolean parseMessage(ByteBuffer packet, InetAddress sender) {
+        MessageHeader header = MessageHeader.parse(packet);
 
-        // Parse fields
-        String type = header_fields[Fields.MSG_TYPE.ordinal()];
-        int sender_id = Integer.parseInt(header_fields[Fields.SENDER_ID.ordinal()]);
+        // Ignore malformed messages and messages from itself
+        if (header == null || header.getSender_id() == peer.id) return false;
 
-        // Ignore message from itself
-        if (sender_id == peer.id) return;
-
-        switch (type) {
+        switch (header.getType()) {
             case "STORED":
-                StoredMessage stored_msg = new StoredMessage(header_fields);
+                StoredMessage stored_msg = new StoredMessage(header);
                 // Log
                 System.out.printf("> Peer %d received: %s\n", peer.id, stored_msg.toString());
                 // Stored Message Handler
@@ -31,26 +35,26 @@ public class MC_Channel extends Channel {
 
             case "GETCHUNK":
 
-                if (header_fields[Fields.VERSION.ordinal()].equals("2.0")){
-                    GetChunkEnhancedMsg get_chunk_msg_v2 = new GetChunkEnhancedMsg(header_fields);
+                if (header.getVersion().equals("2.0")){
+                    GetChunkEnhancedMsg get_chunk_msg_v2 = new GetChunkEnhancedMsg(header);
                     // Log
                     System.out.printf("> Peer %d received: %s\n", peer.id, get_chunk_msg_v2);
                     // GetChunk Message Handler
-                    pool.execute(new GetChunkEnhancedHandler(get_chunk_msg_v2, peer));
+                    executeBulk(new GetChunkEnhancedHandler(get_chunk_msg_v2, sender, peer));
                 }
 
                 else{
-                    GetChunkMessage get_chunk_msg = new GetChunkMessage(header_fields);;
+                    GetChunkMessage get_chunk_msg = new GetChunkMessage(header);
                     // Log
                     System.out.printf("> Peer %d received: %s\n", peer.id, get_chunk_msg);
                     // GetChunk Message Handler
-                    pool.execute(new GetChunkMessageHandler(get_chunk_msg, peer));
+                    executeBulk(new GetChunkMessageHandler(get_chunk_msg, peer));
 
                 }
                 break;
 
             case "DELETE":
-                DeleteMessage delete_msg = new DeleteMessage(header_fields);
+                DeleteMessage delete_msg = new DeleteMessage(header);
                 // Log
                 System.out.printf("> Peer %d received: %s\n", peer.id, delete_msg.toString());
                 // Delete Message Handler
@@ -58,19 +62,41 @@ public class MC_Channel extends Channel {
                 break;
 
             case "REMOVED":
-                RemovedMessage removed_msg = new RemovedMessage(header_fields);
-                // Log
-                System.out.printf("> Peer %d received: %s\n", peer.id, removed_msg.toString());
-                // Removed Message Handler
-                pool.execute(new RemovedMessageHandler(removed_msg, peer));
+
+                if (header.getVersion().equals("2.0")) {
+                    RemovedBatchMessage removed_batch_msg = new RemovedBatchMessage(header, packet);
+                    // Log
+                    System.out.printf("> Peer %d received: %s\n", peer.id, removed_batch_msg.toString());
+                    // Removed Message Handler
+                    pool.execute(new RemovedMessageHandler(removed_batch_msg, peer));
+                }
+
+                else {
+                    RemovedMessage removed_msg = new RemovedMessage(header);
+                    // Log
+                    System.out.printf("> Peer %d received: %s\n", peer.id, removed_msg.toString());
+                    // Removed Message Handler
+                    pool.execute(new RemovedMessageHandler(removed_msg, peer));
+                }
                 break;
 
             case "WOKEUP":
-                WokeUpMsg woke_up_msg = new WokeUpMsg(header_fields);
+                WokeUpMsg woke_up_msg = new WokeUpMsg(header);
                 // Log
                 System.out.printf("> Peer %d received: %s\n", peer.id, woke_up_msg.toString());
                 // WokeUp Message Handler
                 pool.execute(new WokeUpMessageHandler(woke_up_msg, peer));
         }
+
+        return false; // Control message bodies are parsed before they are handled
+    }
+
+    /**
+     * Runs a handler that reads or sends chunks on the MDR pool. Dropped if that pool is full, without waiting,
+     * so a burst of GETCHUNKs can't hold up the control messages received after it
+     */
+    private void executeBulk(Runnable handler) {
+        if (!peer.getRestore_channel().getHandlerPool().tryExecute(handler))
+            System.err.println("WARNING: Dropped GETCHUNK, restore handlers are busy.");
     }
 }
@@ -1,39 +1,43 @@
 package channels;
 
 import handlers.PutChunkMessageHandler;
-import handlers.RemovedMessageHandler;
-import messages.Fields;
-import messages.Message;
+import messages.MessageHeader;
 import messages.PutChunkMessage;
 import peer.Peer;
+import utils.BufferLease;
+import utils.SeenFilter;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public class MDB_Channel extends Channel implements Runnable{
+    private static final int HANDLER_THREADS = 4;
+    public final SeenFilter seen_putchunks; // PUTCHUNKs recently sent by other peers
 
     public MDB_Channel(String host, int port, Peer peer) {
-        super(host, port, peer);
+        super(host, port, peer, "MDB", HANDLER_THREADS, Thread.NORM_PRIORITY);
+        seen_putchunks = new SeenFilter("MDB");
     }
 
     @Override
-    protected void parseMessage(byte[] msg, int msg_len) {
-        byte[] header = Message.getHeaderBytes(msg);
-        byte[] body = Message.getBodyBytes(msg, msg_len, header.length);
-        String[] header_fields = Message.getHeaderFields(msg);
-
-        // Parse fields
-        String type = header_fields[Fields.MSG_TYPE.ordinal()];
-        int sender_id = Integer.parseInt(header_fields[Fields.SENDER_ID.ordinal()]);
-
-        // Ignore message from itself
-        if (sender_id == peer.id) return;
-
-        if(type.equals("PUTCHUNK")){
-            PutChunkMessage put_chunk_msg = new PutChunkMessage(header_fields);
-            // Notify
-            notifyObserver(put_chunk_msg.getFile_id(), put_chunk_msg.getChunk_no());
+    protected boolean parseMessage(ByteBuffer packet, InetAddress sender) {
+        MessageHeader header = MessageHeader.parse(packet);
+
+        // Ignore malformed messages and messages from itself
+        if (header == null || header.getSender_id() == peer.id) return false;
+
+        if(header.getType().equals("PUTCHUNK")){
+            PutChunkMessage put_chunk_msg = new PutChunkMessage(header);
+            BufferLease body = new BufferLease(receive_buffers, packet, header.getLength());
+            seen_putchunks.add(put_chunk_msg.getFile_id(), put_chunk_msg.getChunk_no());
             //Log
             System.out.printf("> Peer %d received: %s\n", peer.id, put_chunk_msg.toString());
             // Putchunk Message Handler
             pool.execute(new PutChunkMessageHandler(put_chunk_msg, body, peer));
+
+            return true; // Handler releases the body
         }
+
+        return false;
     }
 }
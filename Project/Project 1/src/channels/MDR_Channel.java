@@ -2,40 +2,48 @@ package channels;
 
 import handlers.ChunkMessageHandler;
 import messages.ChunkMessage;
-import messages.Fields;
-import messages.Message;
+import messages.MessageHeader;
 import peer.Peer;
-import utils.Pair;
+import utils.BufferLease;
+import utils.SeenFilter;
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public class MDR_Channel extends Channel {
-    public ConcurrentHashMap<Pair<String, Integer>, byte[]> received_chunks;
+    private static final int HANDLER_THREADS = 4;
+    public final ChunkCache received_chunks;
+    public final SeenFilter seen_chunks; // CHUNKs recently sent by other peers
 
     public MDR_Channel(String host, int port, Peer peer) {
-        super(host, port, peer);
-        received_chunks = new ConcurrentHashMap<>();
+        super(host, port, peer, "MDR", HANDLER_THREADS, Thread.NORM_PRIORITY);
+        received_chunks = new ChunkCache();
+        seen_chunks = new SeenFilter("MDR");
     }
 
     @Override
-    protected void parseMessage(byte[] msg, int msg_len) {
-        byte[] header = Message.getHeaderBytes(msg);
-        String[] header_fields = Message.getHeaderFields(msg);
+    protected boolean parseMessage(ByteBuffer packet, InetAddress sender) {
+        MessageHeader header = MessageHeader.parse(packet);
 
-        int sender_id = Integer.parseInt(header_fields[Fields.SENDER_ID.ordinal()]);
-        String type = header_fields[Fields.MSG_TYPE.ordinal()];
+        // Ignore malformed messages and messages from itself
+        if (header == null || header.getSender_id() == peer.id) return false;
 
-        // Ignore message from itself
-        if (sender_id == peer.id) return;
-
-        if (type.equals("CHUNK")) {
-            ChunkMessage chunk_msg = new ChunkMessage(header_fields);
-            byte[] body = Message.getBodyBytes(msg, msg_len, header.length);
-            if(body == null) body = new byte[0]; // Empty chunk
+        if (header.getType().equals("CHUNK")) {
+            ChunkMessage chunk_msg = new ChunkMessage(header);
+            seen_chunks.add(chunk_msg.getFile_id(), chunk_msg.getChunk_no());
             // Log
             System.out.printf("< Peer %d received: %s\n", peer.id, chunk_msg.toString());
+
+            if (!received_chunks.isRetained(chunk_msg.getFile_id()))
+                return false; // Not restoring the file
+
+            BufferLease body = new BufferLease(receive_buffers, packet, header.getLength());
             // Chunk message handler
             pool.execute(new ChunkMessageHandler(chunk_msg, peer, body));
+
+            return true; // Handler releases the body
         }
+
+        return false;
     }
 }
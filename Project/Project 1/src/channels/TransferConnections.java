@@ -0,0 +1,97 @@
+package channels;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Connections to the transfer servers of restoring peers, reused for every chunk sent to them.
+ * Messages are framed by their length, and sends from several handlers on the same connection are
+ * serialized, so replies to pipelined requests can be written as soon as they are ready.
+ */
+public class TransferConnections {
+    private final ConcurrentHashMap<InetSocketAddress, Connection> connections; // By transfer server address
+
+    public TransferConnections() {
+        this.connections = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Sends a message to a transfer server, connecting to it if there is no open connection.
+     * A connection that fails is replaced and the message is sent once more.
+     *
+     * @param address Address of the transfer server, the host the request came from and the port it named
+     * @param message Message to send
+     */
+    public void send(InetSocketAddress address, byte[] message) throws IOException {
+        for (int tries = 1; ; tries++) {
+            Connection connection = getConnection(address);
+
+            try {
+                connection.send(message);
+                return;
+            }
+
+            catch (IOException e) {
+                connections.remove(address, connection);
+                connection.close();
+
+                if (tries == 2)
+                    throw e;
+            }
+        }
+    }
+
+    private Connection getConnection(InetSocketAddress address) throws IOException {
+        Connection connection = connections.get(address);
+
+        if (connection != null)
+            return connection;
+
+        Connection new_connection = new Connection(address);
+        connection = connections.putIfAbsent(address, new_connection);
+
+        if (connection == null)
+            return new_connection;
+
+        new_connection.close(); // Someone else connected first
+
+        return connection;
+    }
+
+    public void close() {
+        for (Connection connection : connections.values())
+            connection.close();
+
+        connections.clear();
+    }
+
+    private static class Connection {
+        private final Socket socket;
+        private final DataOutputStream out;
+
+        Connection(InetSocketAddress address) throws IOException {
+            socket = new Socket(address.getAddress(), address.getPort());
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        synchronized void send(byte[] message) throws IOException {
+            out.writeInt(message.length);
+            out.write(message);
+            out.flush();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            }
+
+            catch (IOException ignored) {
+            }
+        }
+    }
+}
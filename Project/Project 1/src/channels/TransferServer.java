@@ -0,0 +1,132 @@
+package channels;
+
+import messages.ChunkMessage;
+import messages.MessageHeader;
+import peer.Peer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TCP endpoint where peers send the chunks of an enhanced restore.
+ * Holders keep their connection open and send any number of CHUNK messages through it, each framed by its
+ * length, so a restore doesn't pay for a connection per chunk. Each connection is read by its own thread,
+ * and each chunk is handed to the restore of its file.
+ */
+public class TransferServer implements Runnable {
+    private final Peer peer;
+    private final ServerSocket socket;
+    private final ConcurrentHashMap<String, Receiver> receivers; // Restores in progress, by file id
+    private final AtomicInteger connections;
+
+    /**
+     * Restore receiving the chunks of a file
+     */
+    public interface Receiver {
+        void receiveChunk(int sender_id, int chunk_no, ByteBuffer body);
+    }
+
+    public TransferServer(Peer peer) throws IOException {
+        this.peer = peer;
+        this.socket = new ServerSocket(0);
+        this.receivers = new ConcurrentHashMap<>();
+        this.connections = new AtomicInteger(0);
+    }
+
+    @Override
+    public void run() {
+        while (!socket.isClosed()) {
+            try {
+                Socket connection = socket.accept();
+                connection.setTcpNoDelay(true);
+
+                Thread reader = new Thread(() -> read(connection), "transfer-reader-" + connections.incrementAndGet());
+                reader.setDaemon(true);
+                reader.start();
+            }
+
+            catch (IOException e) {
+                if (!socket.isClosed())
+                    System.err.println("ERROR: Failed to accept transfer connection.");
+            }
+        }
+    }
+
+    /**
+     * Reads framed messages from a connection until it is closed
+     */
+    private void read(Socket connection) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()))) {
+            while (true) {
+                int length = in.readInt();
+
+                if (length <= 0 || length > Channel.MAX_SIZE)
+                    throw new IOException("Bad frame length " + length);
+
+                byte[] message = new byte[length];
+                in.readFully(message);
+
+                ByteBuffer packet = ByteBuffer.wrap(message);
+                MessageHeader header = MessageHeader.parse(packet);
+
+                if (header == null || !header.getType().equals("CHUNK"))
+                    continue; // Ignore anything other than chunks
+
+                ChunkMessage chunk_msg = new ChunkMessage(header);
+                System.out.printf("> Peer %d received: %s\n", peer.id, chunk_msg);
+
+                Receiver receiver = receivers.get(chunk_msg.getFile_id());
+
+                if (receiver != null)
+                    receiver.receiveChunk(chunk_msg.getSender_id(), chunk_msg.getChunk_no(), packet.position(header.getLength()).slice());
+            }
+        }
+
+        catch (EOFException e) {
+            // Connection closed by the holder
+        }
+
+        catch (IOException e) {
+            System.err.println("ERROR: Transfer connection failed: " + e.getMessage());
+        }
+
+        finally {
+            try {
+                connection.close();
+            }
+
+            catch (IOException e) {
+                System.err.println("ERROR: Failed to close transfer connection.");
+            }
+        }
+    }
+
+    public void subscribe(String file_id, Receiver receiver) {
+        receivers.put(file_id, receiver);
+    }
+
+    public void unsubscribe(String file_id, Receiver receiver) {
+        receivers.remove(file_id, receiver);
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    public void close() {
+        try {
+            socket.close();
+        }
+
+        catch (IOException e) {
+            System.err.println("ERROR: Failed to close transfer server.");
+        }
+    }
+}
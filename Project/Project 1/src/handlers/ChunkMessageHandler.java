@@ -3,14 +3,14 @@ package handlers;
 import channels.MDR_Channel;
 import messages.ChunkMessage;
 import peer.Peer;
-import utils.Pair;
+import utils.BufferLease;
 
 public class ChunkMessageHandler extends MessageHandler {
     private final int chunk_no;
-    private final byte[] body;
+    private final BufferLease body;
     private final MDR_Channel restore_channel;
 
-    public ChunkMessageHandler(ChunkMessage chunk_msg, Peer peer, byte[] body) {
+    public ChunkMessageHandler(ChunkMessage chunk_msg, Peer peer, BufferLease body) {
         super(chunk_msg.getFile_id(), peer.storage);
         chunk_no = chunk_msg.getChunk_no();
         this.body = body;
@@ -19,10 +19,15 @@ public class ChunkMessageHandler extends MessageHandler {
 
     @Override
     public void run() {
-        if (storage.isFileBackedUp(file_id).get()) // Store body only if peer has original file
-            restore_channel.received_chunks.put(Pair.create(file_id, chunk_no), body);
+        try {
+            if (restore_channel.received_chunks.isRetained(file_id)) // Keep body only if peer is restoring the file
+                restore_channel.received_chunks.put(file_id, chunk_no, body.toByteArray());
 
-        else
-            restore_channel.received_chunks.put(Pair.create(file_id, chunk_no), new byte[0]);
+            restore_channel.notifyObserver(file_id, chunk_no); // Wake up restore
+        }
+
+        finally {
+            body.release();
+        }
     }
 }
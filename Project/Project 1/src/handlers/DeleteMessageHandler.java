@@ -3,8 +3,6 @@ package handlers;
 import messages.DeleteMessage;
 import peer.Peer;
 
-import java.io.File;
-
 public class DeleteMessageHandler extends MessageHandler {
     private final Peer peer;
 
@@ -21,20 +19,10 @@ public class DeleteMessageHandler extends MessageHandler {
     }
 
     private void deleteAllChunksFromFile(String file_id) {
-        String path = storage.getFilePath(file_id);
-        File folder = new File(path);
-
-        if (folder.exists() && folder.isDirectory()) {
-            // Remove all chunks from directory
-            File[] chunks = folder.listFiles();
-
-            if (chunks != null)
-                for (int chunk_no = 0; chunk_no < chunks.length; chunk_no++)
-                    if (chunks[chunk_no].delete()) // Delete file
-                        // Delete from map
-                        storage.removeStoredChunk(file_id, chunk_no);
+        storage.getChunkStore().deleteFile(file_id);
 
-            folder.delete(); // Delete folder
-        }
+        // Delete from map
+        for (int chunk_no : storage.getStoredChunkNumbers(file_id))
+            storage.removeStoredChunk(file_id, chunk_no);
     }
 }
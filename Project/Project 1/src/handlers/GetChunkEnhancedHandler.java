@@ -1,108 +1,103 @@
 package handlers;
 
 import channels.MDR_Channel;
+import channels.TransferConnections;
 import messages.ChunkMessage;
 import messages.GetChunkEnhancedMsg;
 import peer.Peer;
-import peer.storage.Storage;
-import utils.Observer;
-import utils.Pair;
+import utils.BufferPool;
 
 import java.io.*;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.util.Random;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-
-public class GetChunkEnhancedHandler extends MessageHandler implements Observer {
+
+public class GetChunkEnhancedHandler extends MessageHandler {
     private final int chunk_no;
     private final int peer_id;
+    private final InetSocketAddress transfer_server; // Of the restoring peer
+    private final int holder_id;
     private final String version;
     private final MDR_Channel restore_channel;
-    private Socket socket;
-    private final AtomicBoolean abort;
+    private final BufferPool chunk_buffers;
+    private final TransferConnections transfer_connections;
+    private final Peer peer;
+    private final long received_at; // ms
 
-    public GetChunkEnhancedHandler(GetChunkEnhancedMsg get_chunk_msg, Peer peer) {
+    public GetChunkEnhancedHandler(GetChunkEnhancedMsg get_chunk_msg, InetAddress sender, Peer peer) {
         super(get_chunk_msg.getFile_id(), peer.storage);
         chunk_no = get_chunk_msg.getChunk_no();
         version = get_chunk_msg.getVersion();
+        transfer_server = new InetSocketAddress(sender, get_chunk_msg.getPort());
+        holder_id = get_chunk_msg.getHolder_id();
         peer_id = peer.id;
         restore_channel = peer.getRestore_channel();
-        abort = new AtomicBoolean(false);
-
-        try {
-            socket = new Socket("localhost", get_chunk_msg.getPort());
-        }
-
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+        chunk_buffers = peer.chunk_buffers;
+        transfer_connections = peer.transfer_connections;
+        this.peer = peer;
+        received_at = System.currentTimeMillis();
     }
 
     @Override
     public void run() {
-        File chunk = storage.getFile(file_id, chunk_no);
+        if (holder_id != GetChunkEnhancedMsg.ANY_HOLDER && holder_id != peer_id)
+            return; // Requested from another holder
 
-        if (chunk == null)
+        if (!storage.isChunkStored(file_id, chunk_no))
             return; // Chunk is not stored
 
         ChunkMessage message = new ChunkMessage(version, peer_id, file_id, chunk_no);
 
-        try {
-            // Read chunk
-            Path path = Paths.get(chunk.getPath());
-            AsynchronousFileChannel fileChannel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
-
-            ByteBuffer buffer = ByteBuffer.allocate(Storage.MAX_CHUNK_SIZE);
+        if (holder_id == peer_id) { // Only this peer was asked, so it answers right away
+            try {
+                send(message);
+            }
 
-            Future<Integer> operation = fileChannel.read(buffer, 0); // Read chunk
+            catch (IOException e) {
+                e.printStackTrace();
+            }
 
-            int read_bytes = operation.get();
-
-            // Get message byte array
-            byte[] message_bytes = message.getBytes(buffer.array(), read_bytes);
-
-            // Subscribe
-            restore_channel.subscribe(this);
+            return;
+        }
 
-            int sleep_time = new Random().nextInt(400); // Sleep (0-400)ms
+        // Any holder can answer: sleep (0-400)ms, the chunk is only read if it's still needed
+        peer.scheduleReply(() -> {
+            try {
+                // Abort if another holder sent the chunk since the request was received
+                if (restore_channel.seen_chunks.seenSince(file_id, chunk_no, received_at)) return;
+
+                // Chunks sent through TCP aren't seen by the other holders, so they are told with the header
+                if (send(message))
+                    restore_channel.send(ByteBuffer.wrap(message.encodeHeader()));
+            }
+
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, restore_channel.getHandlerPool());
+    }
 
-            ScheduledThreadPoolExecutor scheduledPool = new ScheduledThreadPoolExecutor(1);
-            scheduledPool.schedule(() -> {
-                // Unsubscribe
-                restore_channel.unsubscribe(this);
-                // Abort
-                if(abort.get()) return;
+    /**
+     * Reads the chunk and sends it through the connection to the restoring peer
+     *
+     * @return False if the chunk was removed
+     */
+    private boolean send(ChunkMessage message) throws IOException {
+        ByteBuffer buffer = chunk_buffers.lease();
 
-                // Send message
-                try {
-                    DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-                    outputStream.write(message_bytes);
-                    System.out.printf("< Peer %d Sent: %s\n", peer_id, message); // Log
-                    outputStream.flush();
-                }
+        try {
+            if (!storage.getChunkStore().read(file_id, chunk_no, buffer)) // Read chunk
+                return false; // Chunk was removed
 
-                catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }, sleep_time, TimeUnit.MILLISECONDS);
+            buffer.flip();
+            transfer_connections.send(transfer_server, message.getBytes(buffer));
         }
 
-        catch (IOException | ExecutionException | InterruptedException e) {
-            e.printStackTrace();
+        finally {
+            chunk_buffers.release(buffer);
         }
-    }
 
-    @Override
-    public void notify(String file_id, int chunk_no){
-        abort.set(file_id.equals(this.file_id) && chunk_no == this.chunk_no);
+        System.out.printf("< Peer %d Sent: %s\n", peer_id, message); // Log
+        return true;
     }
 }
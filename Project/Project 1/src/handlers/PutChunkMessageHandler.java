@@ -5,30 +5,20 @@ import messages.PutChunkMessage;
 import messages.StoredMessage;
 import peer.Peer;
 import peer.storage.Chunk;
-import peer.storage.Storage;
+import utils.BufferLease;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.util.Random;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 public class PutChunkMessageHandler extends MessageHandler {
-    private final byte[] body;
+    private final BufferLease body;
     private final int chunk_no;
     private final int replication_degree;
     private final String version;
     private final MC_Channel control_channel;
     private final Peer peer;
 
-    public PutChunkMessageHandler(PutChunkMessage put_chunk_msg, byte[] body, Peer peer) {
+    public PutChunkMessageHandler(PutChunkMessage put_chunk_msg, BufferLease body, Peer peer) {
         super(put_chunk_msg.getFile_id(), peer.storage);
         chunk_no = put_chunk_msg.getChunk_no();
         replication_degree = put_chunk_msg.getReplication_degree();
@@ -40,73 +30,79 @@ public class PutChunkMessageHandler extends MessageHandler {
 
     @Override
     public void run() {
+        boolean stored;
+
+        try {
+            stored = putChunk();
+        }
+
+        finally {
+            body.release(); // Done with the received datagram
+        }
+
         // If store was successful send STORED
-        if (putChunk()) {
+        if (stored) {
             peer.saveStorage(); // Update storage
 
-            // Sleep
-            int sleep_time = new Random().nextInt(400); // Sleep (0-400)ms
-            ScheduledThreadPoolExecutor scheduledPool = new ScheduledThreadPoolExecutor(1);
-            scheduledPool.schedule(() -> {
+            // Sleep (0-400)ms
+            peer.scheduleReply(() -> {
                 // Send STORED msg
                 StoredMessage store_msg = new StoredMessage(version, peer.id, file_id, chunk_no);
                 control_channel.send(store_msg.getBytes(null, 0));
                 // Log
                 System.out.printf("< Peer %d sent: %s\n", peer.id, store_msg.toString());
-            }, sleep_time, TimeUnit.MILLISECONDS);
+            });
         }
     }
 
     private boolean putChunk() {
         // Set chunk_size
-        int chunk_size = 0;
-
-        if (body != null) // Chunk is not empty
-            chunk_size = body.length;
+        int chunk_size = body.size();
 
         // Checks
         if (storage.isChunkStored(file_id, chunk_no))
             return true; // Chunk already stored
 
-        if (!storage.canStoreChunk(file_id, chunk_size))
+        if (!storage.reserveChunkSpace(file_id, chunk_size))
             return false; // Can't store chunk
 
-        // Make directory
-        File directory = new File(storage.getFilePath(file_id));
-
-        if (!directory.exists())  // Create folder for file
-            if (!directory.mkdirs())
-                return false;     // Failed to create folder to store chunk
-
-        String chunk_path = storage.getFilePath(file_id, chunk_no);
-        Path path = Paths.get(chunk_path);
+        boolean committed = false;
 
         try {
-            AsynchronousFileChannel fileChannel = AsynchronousFileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
-            ByteBuffer buffer = ByteBuffer.allocate(chunk_size);
+            committed = writeChunk(chunk_size);
+            return committed;
+        }
 
-            // Don't write if empty chunk
-            if (chunk_size != 0) {
-                buffer.put(body);
-                buffer.flip();
+        finally {
+            if (!committed)
+                storage.releaseSpace(chunk_size); // Chunk wasn't stored
+        }
+    }
 
-                Future<Integer> operation = fileChannel.write(buffer, 0);
+    private boolean writeChunk(int chunk_size) {
+        ByteBuffer buffer = peer.chunk_buffers.lease();
 
-                buffer.clear();
+        try {
+            buffer.put(body.getBuffer());
+            buffer.flip();
 
-                operation.get();
-            }
+            storage.getChunkStore().write(file_id, chunk_no, buffer);
 
-            // Add to map
-            storage.addStoredChunk(chunk_path, new Chunk(file_id, chunk_no, chunk_size, replication_degree, peer.id));
+            // Add to map, using the reserved space
+            storage.commitStoredChunk(storage.getFilePath(file_id, chunk_no),
+                    new Chunk(file_id, chunk_no, chunk_size, replication_degree, peer.id));
 
             return true;
         }
 
-        catch (IOException | ExecutionException | InterruptedException e) {
+        catch (IOException e) {
             System.err.println("ERROR: Couldn't write chunk to file.");
 
             return false;
         }
+
+        finally {
+            peer.chunk_buffers.release(buffer);
+        }
     }
 }
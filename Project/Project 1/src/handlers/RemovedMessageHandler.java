@@ -1,73 +1,47 @@
 package handlers;
 
-import channels.MDB_Channel;
+import messages.RemovedBatchMessage;
 import messages.RemovedMessage;
 import peer.Peer;
 import peer.storage.Chunk;
-import subprotocols.Backup;
-import utils.Observer;
 
-import java.io.File;
-import java.util.Random;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-
-public class RemovedMessageHandler extends MessageHandler implements Observer {
-    private final int chunk_no;
+public class RemovedMessageHandler extends MessageHandler {
+    private final int[] chunk_nos;
     private final int sender_id;
-    private final String version;
     private final Peer peer;
-    private final MDB_Channel backup_channel;
-    private final AtomicBoolean abort;
+    private final long received_at; // ms
 
     public RemovedMessageHandler(RemovedMessage removed_msg, Peer peer) {
-        super(removed_msg.getFile_id(), peer.storage);
-        chunk_no = removed_msg.getChunk_no();
-        sender_id = removed_msg.getSender_id();
-        version = removed_msg.getVersion();
+        this(removed_msg.getFile_id(), new int[]{removed_msg.getChunk_no()}, removed_msg.getSender_id(), peer);
+    }
+
+    public RemovedMessageHandler(RemovedBatchMessage removed_msg, Peer peer) {
+        this(removed_msg.getFile_id(), removed_msg.getChunk_nos(), removed_msg.getSender_id(), peer);
+    }
+
+    private RemovedMessageHandler(String file_id, int[] chunk_nos, int sender_id, Peer peer) {
+        super(file_id, peer.storage);
+        this.chunk_nos = chunk_nos;
+        this.sender_id = sender_id;
         this.peer = peer;
-        backup_channel = peer.getBackup_channel();
-        abort = new AtomicBoolean(false);
+        received_at = System.currentTimeMillis();
     }
 
     @Override
     public void run() {
-        // Decrement RP
-        storage.updateReplicationDegree(file_id, chunk_no, sender_id, false);
-        achieveDesiredChunkRP(); // Check if perceived RP < Desired RP
-        peer.saveStorage(); // Update storage
+        for (int chunk_no : chunk_nos) {
+            // Decrement RP
+            storage.updateReplicationDegree(file_id, chunk_no, sender_id, false);
+            achieveDesiredChunkRP(chunk_no); // Check if perceived RP < Desired RP
+        }
+
+        peer.saveStorage(); // Update storage, once for all the chunks
     }
 
-    private void achieveDesiredChunkRP() {
+    private void achieveDesiredChunkRP(int chunk_no) {
         Chunk chunk = storage.getStoredChunk(file_id, chunk_no);
 
-        if (chunk != null && chunk.needsBackUp()) { // Initiate backup if perceived RP < Desired RP
-            File chunk_file = storage.getFile(file_id, chunk_no);
-
-            if (chunk_file != null) {
-                // Subscribe
-                backup_channel.subscribe(this);
-
-                //Sleep
-                int sleep_time = new Random().nextInt(400); // Sleep (0-400)ms
-                ScheduledThreadPoolExecutor scheduledPool = new ScheduledThreadPoolExecutor(1);
-                scheduledPool.schedule(() -> {
-                    // Unsubscribe
-                    backup_channel.unsubscribe(this);
-                    // Abort
-                    if(abort.get()) return;
-
-                    Backup task = new Backup(peer, version, chunk_file, chunk, peer.getBackup_channel(),
-                            peer.getControl_channel());
-                    peer.pool.execute(task);
-                }, sleep_time, TimeUnit.MILLISECONDS);
-            }
-        }
-    }
-
-    @Override
-    public void notify(String file_id, int chunk_no){
-        abort.set(file_id.equals(this.file_id) && chunk_no == this.chunk_no);
+        if (chunk != null && chunk.needsBackUp()) // Back up again if perceived RP < Desired RP
+            peer.repair_queue.add(chunk, received_at);
     }
 }
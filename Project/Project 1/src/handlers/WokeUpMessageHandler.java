@@ -6,18 +6,18 @@ import peer.Peer;
 import subprotocols.Delete;
 
 import java.util.Set;
-import java.util.concurrent.*;
+import java.util.concurrent.Executor;
 
 public class WokeUpMessageHandler implements Runnable{
     private Set<String> deleted_files;
-    private ExecutorService pool;
+    private Executor pool;
     private String version;
     private Peer peer;
     private MC_Channel mc_channel;
 
     public WokeUpMessageHandler(WokeUpMsg woke_up_msg, Peer peer) {
         deleted_files = peer.storage.getDeletedFiles();
-        pool = Executors.newCachedThreadPool();
+        pool = peer.pool;
         version = woke_up_msg.getVersion();
         this.peer = peer;
         mc_channel = peer.getControl_channel();
@@ -14,7 +14,12 @@ public class DeleteMessage extends Message {
         super(header_fields);
     }
 
+    public DeleteMessage(MessageHeader header){
+        super(header);
+    }
+
     public void setFileID(String fileID){
         super.file_id = fileID;
+        invalidateHeader();
     }
 }
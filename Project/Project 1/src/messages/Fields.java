@@ -6,5 +6,6 @@ public enum Fields {
     SENDER_ID,
     FILE_ID,
     CHUNK_NO,
-    REP_DEG
+    REP_DEG,
+    HOLDER_ID
 }
@@ -1,42 +1,72 @@
 package messages;
 
+import java.nio.ByteBuffer;
+
 public class GetChunkEnhancedMsg extends Message {
+    public static final int ANY_HOLDER = -1;
     private final int port;
+    private final int holder_id; // Only this peer answers, unless ANY_HOLDER
     protected int chunk_no;
 
     public GetChunkEnhancedMsg(String version, int sender_id, String file_id, int chunk_no, int port) {
+        this(version, sender_id, file_id, chunk_no, port, ANY_HOLDER);
+    }
+
+    public GetChunkEnhancedMsg(String version, int sender_id, String file_id, int chunk_no, int port, int holder_id) {
         super(version, "GETCHUNK", sender_id, file_id);
         this.port = port;
         this.chunk_no = chunk_no;
+        this.holder_id = holder_id;
     }
 
     public GetChunkEnhancedMsg(String[] header_fields) {
         super(header_fields);
         this.port = Integer.parseInt(header_fields[Fields.REP_DEG.ordinal()]);
         this.chunk_no = Integer.parseInt(header_fields[Fields.CHUNK_NO.ordinal()]);
+        this.holder_id = header_fields.length > Fields.HOLDER_ID.ordinal() ?
+                Integer.parseInt(header_fields[Fields.HOLDER_ID.ordinal()]) : ANY_HOLDER;
+    }
+
+    public GetChunkEnhancedMsg(MessageHeader header) {
+        super(header);
+        this.port = header.getReplication_degree();
+        this.chunk_no = header.getChunk_no();
+        this.holder_id = header.getHolder_id();
     }
 
     @Override
-    public String getHeader() {
-        String content = String.format("%d %d", chunk_no, port);
-        return super.getHeader(content);
+    protected void putContent(ByteBuffer header) {
+        putInt(header, chunk_no);
+        header.put((byte) ' ');
+        putInt(header, port);
+
+        if (holder_id != ANY_HOLDER) {
+            header.put((byte) ' ');
+            putInt(header, holder_id);
+        }
     }
 
     @Override
     public String toString()
     {
-        return super.toString() + String.format("%d %d", chunk_no, port);
+        return super.toString() + (holder_id == ANY_HOLDER ? String.format("%d %d", chunk_no, port) :
+                String.format("%d %d %d", chunk_no, port, holder_id));
     }
 
     public int getPort() {
         return port;
     }
 
+    public int getHolder_id() {
+        return holder_id;
+    }
+
     public int getChunk_no() {
         return chunk_no;
     }
 
     public void setChunkNo(int chunk_no) {
         this.chunk_no = chunk_no;
+        invalidateHeader();
     }
 }
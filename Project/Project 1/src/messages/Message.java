@@ -1,14 +1,18 @@
 package messages;
 
-import java.net.Proxy;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public abstract class Message {
     protected String version;
     protected String type;
     protected int sender_id;
     protected String file_id;
-    private static final String CRLF = "\r\n";
+    private static final byte SPACE = (byte) ' ';
+    private static final byte[] HEADER_END = {' ', '\r', '\n', ' ', '\r', '\n'};
+    private static final int MAX_INT_LENGTH = 11; // Digits of Integer.MIN_VALUE, with the sign
+    private byte[] encoded_header; // Cached until the header changes
 
     public Message(String version, String type, int sender_id, String file_id) {
         this.version = version;
@@ -24,8 +28,80 @@ public abstract class Message {
         this.file_id = header_fields[Fields.FILE_ID.ordinal()];
     }
 
-    protected String getHeader(String content) {
-        return String.format("%s %s %d %s %s %s %s", version, type, sender_id, file_id, content, CRLF, CRLF);
+    public Message(MessageHeader header){
+        this.version = header.getVersion();
+        this.type = header.getType();
+        this.sender_id = header.getSender_id();
+        this.file_id = header.getFile_id();
+    }
+
+    /**
+     * Returns the encoded header. The header is encoded the first time, straight into a byte array, and the
+     * same array is returned until the header changes, so retransmissions don't encode it again.
+     *
+     * @return Header bytes, which must not be modified
+     */
+    public byte[] encodeHeader() {
+        byte[] header = encoded_header;
+
+        if (header == null) {
+            ByteBuffer buffer = ByteBuffer.allocate(version.length() + type.length() + file_id.length() +
+                    4 * MAX_INT_LENGTH + 4 + HEADER_END.length);
+
+            putAscii(buffer, version);
+            buffer.put(SPACE);
+            putAscii(buffer, type);
+            buffer.put(SPACE);
+            putInt(buffer, sender_id);
+            buffer.put(SPACE);
+            putAscii(buffer, file_id);
+            buffer.put(SPACE);
+            putContent(buffer);
+            buffer.put(HEADER_END);
+
+            header = Arrays.copyOf(buffer.array(), buffer.position());
+            encoded_header = header;
+        }
+
+        return header;
+    }
+
+    /**
+     * Writes the fields that follow the file id, separated by spaces
+     */
+    protected void putContent(ByteBuffer header) {
+    }
+
+    /**
+     * Drops the cached header, after a field changes
+     */
+    protected void invalidateHeader() {
+        encoded_header = null;
+    }
+
+    protected static void putAscii(ByteBuffer buffer, String string) {
+        for (int i = 0; i < string.length(); i++)
+            buffer.put((byte) string.charAt(i));
+    }
+
+    /**
+     * Writes the decimal digits of a number, without creating a string
+     */
+    protected static void putInt(ByteBuffer buffer, int value) {
+        long number = value; // Negating Integer.MIN_VALUE doesn't fit in an int
+
+        if (number < 0) {
+            buffer.put((byte) '-');
+            number = -number;
+        }
+
+        long divisor = 1;
+
+        while (divisor * 10 <= number)
+            divisor *= 10;
+
+        for (; divisor > 0; divisor /= 10)
+            buffer.put((byte) ('0' + number / divisor % 10));
     }
 
     public static byte[] getHeaderBytes(byte[] message) {
@@ -68,7 +144,7 @@ public abstract class Message {
      * @return Message byte array
      */
     public byte[] getBytes(byte[] body, int body_length) {
-        byte[] header = getHeader().getBytes(StandardCharsets.UTF_8);
+        byte[] header = encodeHeader();
         byte[] message = new byte[header.length + body_length];
 
         // Copy contents to message array
@@ -80,6 +156,23 @@ public abstract class Message {
         return message;
     }
 
+    /**
+     * Returns full message byte array
+     *
+     * @param body to include in byte array, from its position to its limit. The position is left unchanged
+     * @return Message byte array
+     */
+    public byte[] getBytes(ByteBuffer body) {
+        byte[] header = encodeHeader();
+        byte[] message = new byte[header.length + body.remaining()];
+
+        // Copy contents to message array
+        System.arraycopy(header, 0, message, 0, header.length);
+        body.duplicate().get(message, header.length, body.remaining());
+
+        return message;
+    }
+
     public static String[] getHeaderFields(byte[] message_bytes) {
         String header_string = new String(getHeaderBytes(message_bytes));
 
@@ -92,7 +185,7 @@ public abstract class Message {
     }
 
     public String getHeader(){
-        return getHeader("");
+        return new String(encodeHeader(), StandardCharsets.US_ASCII);
     }
 
     public int getSender_id() {
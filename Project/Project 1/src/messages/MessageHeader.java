@@ -0,0 +1,196 @@
+package messages;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Header of a received message, parsed in place from the receive buffer.
+ * Fields are tokenized by scanning the bytes for spaces, without regexes or intermediate strings. Numeric
+ * fields are decoded directly from the bytes, and the version and message type reuse constant strings.
+ * Only the file id is materialized as a string, and only when it is requested.
+ * The header reads the receive buffer, so it must not be used after the buffer is reused.
+ */
+public class MessageHeader {
+    private static final byte CR = (byte) 0xD;
+    private static final byte LF = (byte) 0xA;
+    private static final byte SPACE = (byte) ' ';
+    private static final String[] VERSIONS = {"1.0", "2.0"};
+    private static final String[] TYPES = {"PUTCHUNK", "STORED", "GETCHUNK", "CHUNK", "DELETE", "REMOVED", "WOKEUP"};
+    private static final int NO_FIELD = -1;
+
+    private final byte[] bytes;
+    private final int[] field_start;
+    private final int[] field_end;
+    private int number_of_fields;
+    private int length;
+    private String version;
+    private String type;
+    private int sender_id;
+    private String file_id;
+
+    private MessageHeader(byte[] bytes) {
+        this.bytes = bytes;
+        this.field_start = new int[Fields.values().length];
+        this.field_end = new int[Fields.values().length];
+    }
+
+    /**
+     * Parses the header of the message between the position and the limit of a heap buffer
+     *
+     * @param packet Buffer with the received message
+     * @return Parsed header, or null if the message is malformed
+     */
+    public static MessageHeader parse(ByteBuffer packet) {
+        MessageHeader header = new MessageHeader(packet.array());
+        int start = packet.arrayOffset() + packet.position();
+        int end = packet.arrayOffset() + packet.limit();
+
+        if (!header.tokenize(start, end))
+            return null;
+
+        if (header.number_of_fields <= Fields.SENDER_ID.ordinal())
+            return null; // Missing mandatory fields
+
+        header.version = header.match(Fields.VERSION, VERSIONS);
+        header.type = header.match(Fields.MSG_TYPE, TYPES);
+        header.sender_id = header.parseInt(Fields.SENDER_ID);
+
+        if (header.sender_id == NO_FIELD)
+            return null;
+
+        header.length -= start;
+
+        return header;
+    }
+
+    /**
+     * Splits the header into fields, up to the CRLF that ends it
+     *
+     * @return false if the header is not terminated
+     */
+    private boolean tokenize(int start, int end) {
+        int i = start;
+
+        while (i < end) {
+            byte b = bytes[i];
+
+            if (b == CR) {
+                if (i + 1 < end && bytes[i + 1] == LF) {
+                    length = Math.min(i + 5, end); // "\r\n \r\n"
+                    return true;
+                }
+
+                return false;
+            }
+
+            if (b == SPACE) {
+                i++;
+                continue;
+            }
+
+            int field_begin = i;
+
+            while (i < end && bytes[i] != SPACE && bytes[i] != CR)
+                i++;
+
+            if (number_of_fields < field_start.length) {
+                field_start[number_of_fields] = field_begin;
+                field_end[number_of_fields] = i;
+                number_of_fields++;
+            }
+        }
+
+        return false;
+    }
+
+    private String match(Fields field, String[] constants) {
+        int start = field_start[field.ordinal()], field_length = field_end[field.ordinal()] - start;
+
+        for (String constant : constants) {
+            if (constant.length() != field_length)
+                continue;
+
+            int i = 0;
+
+            while (i < field_length && bytes[start + i] == constant.charAt(i))
+                i++;
+
+            if (i == field_length)
+                return constant;
+        }
+
+        return new String(bytes, start, field_length, StandardCharsets.US_ASCII);
+    }
+
+    private int parseInt(Fields field) {
+        if (field.ordinal() >= number_of_fields)
+            return NO_FIELD;
+
+        int value = 0;
+
+        for (int i = field_start[field.ordinal()]; i < field_end[field.ordinal()]; i++) {
+            int digit = bytes[i] - '0';
+
+            if (digit < 0 || digit > 9)
+                return NO_FIELD; // Not a number
+
+            value = value * 10 + digit;
+        }
+
+        return value;
+    }
+
+    /**
+     * @return Length of the header, which is the offset of the body in the message
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public int getSender_id() {
+        return sender_id;
+    }
+
+    public String getFile_id() {
+        if (file_id == null) {
+            if (Fields.FILE_ID.ordinal() >= number_of_fields)
+                file_id = "";
+
+            else {
+                int start = field_start[Fields.FILE_ID.ordinal()];
+                file_id = new String(bytes, start, field_end[Fields.FILE_ID.ordinal()] - start, StandardCharsets.US_ASCII);
+            }
+        }
+
+        return file_id;
+    }
+
+    /**
+     * @return Chunk number, or -1 if the message doesn't have one
+     */
+    public int getChunk_no() {
+        return parseInt(Fields.CHUNK_NO);
+    }
+
+    /**
+     * @return Replication degree, or -1 if the message doesn't have one
+     */
+    public int getReplication_degree() {
+        return parseInt(Fields.REP_DEG);
+    }
+
+    /**
+     * @return Peer a request is addressed to, or -1 if any peer can answer it
+     */
+    public int getHolder_id() {
+        return parseInt(Fields.HOLDER_ID);
+    }
+}
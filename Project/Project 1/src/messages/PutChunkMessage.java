@@ -1,5 +1,7 @@
 package messages;
 
+import java.nio.ByteBuffer;
+
 public class PutChunkMessage extends Message {
     private final int replication_degree;
     private int chunk_no;
@@ -17,10 +19,17 @@ public class PutChunkMessage extends Message {
         this.replication_degree = Integer.parseInt(header_fields[Fields.REP_DEG.ordinal()]);
     }
 
+    public PutChunkMessage(MessageHeader header){
+        super(header);
+        this.chunk_no = header.getChunk_no();
+        this.replication_degree = header.getReplication_degree();
+    }
+
     @Override
-    public String getHeader() {
-        String content = String.format("%d %d", chunk_no, replication_degree);
-        return super.getHeader(content);
+    protected void putContent(ByteBuffer header) {
+        putInt(header, chunk_no);
+        header.put((byte) ' ');
+        putInt(header, replication_degree);
     }
 
     @Override
@@ -30,6 +39,7 @@ public class PutChunkMessage extends Message {
 
     public void setChunkNo(int chunk_no) {
         this.chunk_no = chunk_no;
+        invalidateHeader();
     }
 
     public int getReplication_degree() {
@@ -0,0 +1,85 @@
+package messages;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * REMOVED of several chunks of the same file, sent by peers of version 2.0.
+ * The header is that of a REMOVED of the first chunk, and the body has the numbers of the other chunks as
+ * 4 byte integers, so a single datagram announces up to MAX_CHUNKS chunks.
+ */
+public class RemovedBatchMessage extends Message {
+    private static final int MAX_BODY_SIZE = 64000;
+    public static final int MAX_CHUNKS = 1 + MAX_BODY_SIZE / Integer.BYTES;
+    private final int[] chunk_nos;
+
+    public RemovedBatchMessage(String version, int sender_id, String file_id, int[] chunk_nos) {
+        super(version, "REMOVED", sender_id, file_id);
+
+        if (chunk_nos.length == 0 || chunk_nos.length > MAX_CHUNKS)
+            throw new IllegalArgumentException("Invalid number of chunks: " + chunk_nos.length);
+
+        this.chunk_nos = chunk_nos;
+    }
+
+    /**
+     * @param packet Received message, from its position to its limit
+     */
+    public RemovedBatchMessage(MessageHeader header, ByteBuffer packet) {
+        super(header);
+
+        ByteBuffer body = packet.duplicate();
+        body.position(body.position() + header.getLength());
+
+        int others = Math.min(body.remaining() / Integer.BYTES, MAX_CHUNKS - 1); // Ignores incomplete numbers
+        this.chunk_nos = new int[1 + others];
+        this.chunk_nos[0] = header.getChunk_no();
+
+        for (int i = 1; i <= others; i++)
+            this.chunk_nos[i] = body.getInt();
+    }
+
+    /**
+     * Splits the REMOVED of the chunks of a file into as few messages as possible
+     */
+    public static List<RemovedBatchMessage> create(String version, int sender_id, String file_id, int[] chunk_nos) {
+        List<RemovedBatchMessage> messages = new ArrayList<>();
+
+        for (int from = 0; from < chunk_nos.length; from += MAX_CHUNKS) {
+            int[] batch = Arrays.copyOfRange(chunk_nos, from, Math.min(from + MAX_CHUNKS, chunk_nos.length));
+            messages.add(new RemovedBatchMessage(version, sender_id, file_id, batch));
+        }
+
+        return messages;
+    }
+
+    @Override
+    protected void putContent(ByteBuffer header) {
+        putInt(header, chunk_nos[0]);
+    }
+
+    /**
+     * @return Body with the numbers of all chunks but the first
+     */
+    public ByteBuffer getBody() {
+        ByteBuffer body = ByteBuffer.allocate((chunk_nos.length - 1) * Integer.BYTES);
+
+        for (int i = 1; i < chunk_nos.length; i++)
+            body.putInt(chunk_nos[i]);
+
+        body.flip();
+
+        return body;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + String.format("%d (%d chunks)", chunk_nos[0], chunk_nos.length);
+    }
+
+    public int[] getChunk_nos() {
+        return chunk_nos;
+    }
+}
@@ -1,5 +1,7 @@
 package messages;
 
+import java.nio.ByteBuffer;
+
 public class RemovedMessage extends Message{
     private int chunk_no;
 
@@ -13,10 +15,14 @@ public class RemovedMessage extends Message{
         this.chunk_no = Integer.parseInt(header_fields[Fields.CHUNK_NO.ordinal()]);
     }
 
+    public RemovedMessage(MessageHeader header){
+        super(header);
+        this.chunk_no = header.getChunk_no();
+    }
+
     @Override
-    public String getHeader() {
-        String content = String.format("%d", chunk_no);
-        return super.getHeader(content);
+    protected void putContent(ByteBuffer header) {
+        putInt(header, chunk_no);
     }
 
     @Override
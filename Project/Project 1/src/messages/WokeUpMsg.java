@@ -9,4 +9,8 @@ public class WokeUpMsg extends Message {
         super("2.0", "WOKEUP",
                Integer.parseInt(header_fields[Fields.SENDER_ID.ordinal()]), "");
     }
+
+    public WokeUpMsg(MessageHeader header){
+        super("2.0", "WOKEUP", header.getSender_id(), "");
+    }
 }
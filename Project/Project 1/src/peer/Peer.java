@@ -3,8 +3,13 @@ package peer;
 import channels.*;
 import messages.WokeUpMsg;
 import peer.storage.BackedUpFile;
+import peer.storage.ChunkStore;
 import peer.storage.Storage;
+import peer.storage.StorageFlusher;
+import peer.storage.StorageJournal;
 import subprotocols.*;
+import utils.BoundedExecutor;
+import utils.BufferPool;
 
 import java.io.*;
 import java.rmi.AlreadyBoundException;
@@ -13,18 +18,31 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 public class Peer implements RMI {
+    private static final int POOLED_CHUNK_BUFFERS = 64;
+    private static final int SCHEDULER_THREADS = 2;
+    private static final int POOL_THREADS = 16;
+    private static final int POOL_QUEUE_CAPACITY = 1024;
+    public static final int MAX_REPLY_DELAY = 400; // ms
     public int id;
     private String version;
     private String access_point;
     private MC_Channel control_channel;
     private MDB_Channel backup_channel;
     private MDR_Channel restore_channel;
-    public ExecutorService pool;
+    public BoundedExecutor pool; // Subprotocols
+    public ScheduledThreadPoolExecutor scheduler; // Timers and delayed replies
     public Storage storage;
+    public BufferPool chunk_buffers; // Direct buffers for chunk file I/O
+    public TransferConnections transfer_connections; // Connections to restoring peers (2.0)
+    private TransferServer transfer_server; // Receives restored chunks (2.0)
+    public RepairQueue repair_queue; // Stored chunks to back up again
+    private StorageFlusher flusher;
 
     public static void main(String[] args) {
         if (args.length != 9) {
@@ -54,6 +72,25 @@ public class Peer implements RMI {
                 }
 
                 peer.pool.shutdownNow();
+                peer.control_channel.getHandlerPool().shutdownNow();
+                peer.backup_channel.getHandlerPool().shutdownNow();
+                peer.restore_channel.getHandlerPool().shutdownNow();
+                peer.scheduler.shutdownNow();
+                peer.transfer_connections.close();
+
+                if (peer.transfer_server != null)
+                    peer.transfer_server.close();
+
+                if (peer.flusher != null)
+                    peer.flusher.close(); // Make pending storage changes durable
+
+                try {
+                    peer.storage.getChunkStore().close();
+                }
+
+                catch (IOException e) {
+                    System.err.println("ERROR: Failed to close chunk store.");
+                }
             }));
         }
 
@@ -63,9 +100,12 @@ public class Peer implements RMI {
         }
 
         // Start listening on channels
-        peer.pool.execute(peer.backup_channel);
-        peer.pool.execute(peer.control_channel);
-        peer.pool.execute(peer.restore_channel);
+        new Thread(peer.backup_channel, "MDB-receiver").start();
+        new Thread(peer.control_channel, "MC-receiver").start();
+        new Thread(peer.restore_channel, "MDR-receiver").start();
+
+        if (peer.transfer_server != null)
+            new Thread(peer.transfer_server, "transfer-acceptor").start();
 
         try {
             Thread.sleep(100); // Wait for the MC Channel to create the socket
@@ -90,7 +130,14 @@ public class Peer implements RMI {
             control_channel = new MC_Channel(args[3], Integer.parseInt(args[4]), this);
             backup_channel = new MDB_Channel(args[5], Integer.parseInt(args[6]), this);
             restore_channel = new MDR_Channel(args[7], Integer.parseInt(args[8]), this);
-            pool = Executors.newCachedThreadPool();
+            pool = new BoundedExecutor("Peer", POOL_THREADS, POOL_QUEUE_CAPACITY, Thread.NORM_PRIORITY);
+            scheduler = new ScheduledThreadPoolExecutor(SCHEDULER_THREADS);
+            scheduler.setRemoveOnCancelPolicy(true);
+            chunk_buffers = new BufferPool(Storage.MAX_CHUNK_SIZE, POOLED_CHUNK_BUFFERS, true);
+            transfer_connections = new TransferConnections();
+
+            if (version.equals("2.0"))
+                transfer_server = new TransferServer(this);
         }
 
         catch (NumberFormatException e) {
@@ -99,15 +146,46 @@ public class Peer implements RMI {
             System.exit(-1);
         }
 
+        catch (IOException e) {
+            System.err.println("ERROR: Failed to open transfer server.");
+            System.exit(-1);
+        }
+
         try {
             loadStorage(); // Load storage if exists
         }
 
         catch (IOException | ClassNotFoundException e) {
-            // Set up storage
-            storage = new Storage(id, version);
-            storage.makeDirectories();
+            // Compacting would replace the snapshot and the journal with an empty storage
+            System.err.println("ERROR: Failed to load storage. Remove " + Storage.getStoragePath(id) + " and " +
+                    StorageJournal.getJournalPath(id) + " to start with an empty storage.");
+            System.exit(-1);
+        }
+
+        try {
+            StorageJournal journal = new StorageJournal(id);
+            journal.compact(storage); // Start from a fresh snapshot and an empty journal
+            storage.setJournal(journal);
+
+            flusher = new StorageFlusher(storage, journal);
+            flusher.start();
+        }
+
+        catch (IOException e) {
+            System.err.println("ERROR: Failed to open storage journal.");
+        }
+
+        try {
+            // Where stored chunks are kept, -Dpeer.chunk_store=files|segments
+            storage.setChunkStore(ChunkStore.open(id, System.getProperty("peer.chunk_store", "files")));
         }
+
+        catch (IOException e) {
+            System.err.println("ERROR: Failed to open chunk store.");
+            System.exit(-1);
+        }
+
+        repair_queue = new RepairQueue(this);
     }
 
     /* RMI Interface */
@@ -129,6 +207,7 @@ public class Peer implements RMI {
             }
 
             storage.addBackedUpFile(new_file);
+            saveStorage();
             Runnable task = new Backup(this, version, file, new_file.getId(), new_file.getNumberOfChunks(),
                     replication_degree, backup_channel, control_channel);
             pool.execute(task);
@@ -162,6 +241,7 @@ public class Peer implements RMI {
         }
 
         storage.removeBackedUpFile(file); // Remove from backed up files
+        saveStorage();
         Delete task = new Delete(this, version, file.getId(), control_channel);
         pool.execute(task);
     }
@@ -180,11 +260,57 @@ public class Peer implements RMI {
         return "----------------- \n BACKED UP FILES\n----------------- \n" +
                 storage.getBackedUpFilesState() +
                 "------------------ \n BACKED UP CHUNKS\n------------------ \n" +
-                storage.getBackedUpChunksState();
+                storage.getBackedUpChunksState() +
+                "------------- \n CHUNK STORE\n------------- \n" +
+                storage.getChunkStore().getState() +
+                "------------------- \n CHUNK BUFFER POOL\n------------------- \n" +
+                chunk_buffers.getState() +
+                "------------------------ \n RECEIVED CHUNKS CACHE\n------------------------ \n" +
+                restore_channel.received_chunks.getState() +
+                "----------------------- \n DUPLICATE SUPPRESSION\n----------------------- \n" +
+                restore_channel.seen_chunks.getState() +
+                backup_channel.seen_putchunks.getState() +
+                "-------------- \n REPAIR QUEUE\n-------------- \n" +
+                repair_queue.getState() +
+                "---------------- \n HANDLER QUEUES\n---------------- \n" +
+                control_channel.getHandlerPool().getState() +
+                backup_channel.getHandlerPool().getState() +
+                restore_channel.getHandlerPool().getState() +
+                pool.getState();
+    }
+
+    /**
+     * Schedules a reply to be sent after a random delay between 0 and MAX_REPLY_DELAY ms
+     *
+     * @param reply Task that sends the reply
+     * @return Future that can be used to cancel the reply
+     */
+    public ScheduledFuture<?> scheduleReply(Runnable reply) {
+        int delay = ThreadLocalRandom.current().nextInt(MAX_REPLY_DELAY);
+        return scheduler.schedule(reply, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules a reply that sends a chunk, which is run on the given pool once the delay is over so the
+     * scheduler threads never wait on the send. The reply is dropped if the pool is full
+     *
+     * @param reply Task that sends the reply
+     * @param pool Pool that runs the reply
+     * @return Future that can be used to cancel the reply
+     */
+    public ScheduledFuture<?> scheduleReply(Runnable reply, BoundedExecutor pool) {
+        return scheduleReply(() -> {
+            if (!pool.tryExecute(reply))
+                System.err.println("WARNING: Dropped chunk reply, restore handlers are busy.");
+        });
     }
 
     /* Getters */
 
+    public String getVersion() {
+        return version;
+    }
+
     public MC_Channel getControl_channel() {
         return control_channel;
     }
@@ -197,33 +323,39 @@ public class Peer implements RMI {
         return restore_channel;
     }
 
+    public TransferServer getTransfer_server() {
+        return transfer_server;
+    }
+
     /* Others */
 
     private static void usage() {
         System.out.println("Usage: <protocol version> <peer ID> <service access point> <MC> <MDB> <MDR>");
     }
 
+    /**
+     * Schedules the storage changes to be persisted by the flusher thread
+     */
     public void saveStorage() {
-        FileOutputStream fileOutputStream;
+        if (flusher != null)
+            flusher.markDirty();
+    }
 
-        try {
-            fileOutputStream = new FileOutputStream(Storage.getStoragePath(id));
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(fileOutputStream);
+    public void loadStorage() throws IOException, ClassNotFoundException {
+        File snapshot = new File(Storage.getStoragePath(id));
 
-            objectOutputStream.writeObject(storage);
-            objectOutputStream.flush();
-            objectOutputStream.close();
+        if (snapshot.exists()) {
+            try (ObjectInputStream objectInputStream = new ObjectInputStream(new FileInputStream(snapshot))) {
+                this.storage = (Storage) objectInputStream.readObject(); // Last snapshot
+            }
         }
 
-        catch (IOException e) {
-            e.printStackTrace();
+        else {
+            // Set up storage
+            this.storage = new Storage(id, version);
+            storage.makeDirectories();
         }
-    }
-
-    public void loadStorage() throws IOException, ClassNotFoundException {
-        FileInputStream fileInputStream = new FileInputStream(Storage.getStoragePath(id));
-        ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream);
 
-        this.storage = (Storage) objectInputStream.readObject();
+        StorageJournal.replay(id, storage); // Mutations since the last snapshot
     }
 }
@@ -11,6 +11,7 @@ import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class BackedUpFile implements Serializable {
+    private static final long serialVersionUID = -3576438285170754182L; // Of the snapshots already written
     private final String file_id;
     private int number_of_chunks;
     private String path;
@@ -33,6 +34,14 @@ public class BackedUpFile implements Serializable {
         }
     }
 
+    BackedUpFile(String path, String file_id, int number_of_chunks, int replication_degree) {
+        this.path = path;
+        this.file_id = file_id;
+        this.number_of_chunks = number_of_chunks;
+        this.desired_replication_degree = replication_degree;
+        this.chunks = new ConcurrentHashMap<>();
+    }
+
     public BackedUpFile(String file_id) {
         this.file_id = file_id;
     }
@@ -136,9 +145,9 @@ public class BackedUpFile implements Serializable {
 
     public void incrementReplicationDegree(int chunk_no, int sender_id) {
         Chunk chunk = chunks.get(chunk_no);
-        if(chunk == null)
-            chunks.put(chunk_no, new Chunk(file_id, chunk_no, desired_replication_degree, sender_id));
-        else chunk.incrementPerceivedRepDegree(sender_id);
+        if(chunk == null) // Atomically create the chunk, concurrent STOREDs may race here
+            chunk = chunks.computeIfAbsent(chunk_no, no -> new Chunk(file_id, no, desired_replication_degree, sender_id));
+        chunk.incrementPerceivedRepDegree(sender_id);
     }
 
     public void decrementReplicationDegree(int chunk_no, int sender_id) {
@@ -147,6 +156,15 @@ public class BackedUpFile implements Serializable {
             chunk.decrementPerceivedRepDegree(sender_id);
     }
 
+    /**
+     * @return Peers that sent STORED for the chunk and haven't removed it since
+     */
+    public int[] getChunkHolders(int chunk_no) {
+        Chunk chunk = chunks.get(chunk_no);
+        if(chunk == null) return new int[0];
+        return chunk.getPeers();
+    }
+
     public int getPerceivedRP(int chunk_no) {
         Chunk chunk = chunks.get(chunk_no);
         if(chunk == null) return 0;
@@ -0,0 +1,55 @@
+package peer.storage;
+
+import java.util.BitSet;
+
+/**
+ * Set of the chunk numbers of a file that a peer stores, kept as a bit set.
+ * Checks and updates take constant time and don't allocate, so they can be done on every PUTCHUNK.
+ */
+class ChunkSet {
+    private final BitSet chunks;
+    private int size;
+
+    ChunkSet() {
+        this.chunks = new BitSet();
+        this.size = 0;
+    }
+
+    /**
+     * @return true if the chunk was not in the set
+     */
+    synchronized boolean add(int chunk_no) {
+        if (chunks.get(chunk_no))
+            return false;
+
+        chunks.set(chunk_no);
+        size++;
+
+        return true;
+    }
+
+    /**
+     * @return true if the chunk was in the set
+     */
+    synchronized boolean remove(int chunk_no) {
+        if (!chunks.get(chunk_no))
+            return false;
+
+        chunks.clear(chunk_no);
+        size--;
+
+        return true;
+    }
+
+    synchronized boolean contains(int chunk_no) {
+        return chunks.get(chunk_no);
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    synchronized int[] toArray() {
+        return chunks.stream().toArray();
+    }
+}
@@ -0,0 +1,69 @@
+package peer.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where the bodies of the chunks stored by a peer are kept. Storage keeps track of which chunks are stored,
+ * and the chunk store only reads and writes their bytes.
+ * FILES keeps each chunk in its own file, and SEGMENTS appends the chunks to large segment files.
+ */
+public interface ChunkStore extends Closeable {
+    /**
+     * Opens a chunk store of a peer
+     *
+     * @param type files or segments
+     */
+    static ChunkStore open(int peer_id, String type) throws IOException {
+        String folder = Storage.FILESYSTEM_FOLDER + peer_id;
+
+        if (type.equalsIgnoreCase("segments"))
+            return new SegmentChunkStore(folder + SegmentChunkStore.SEGMENTS_FOLDER);
+
+        return new FileChunkStore(folder + Storage.BACKUP_FOLDER);
+    }
+
+    /**
+     * Writes a chunk, replacing it if it is already stored
+     *
+     * @param chunk Body of the chunk, from its position to its limit. The position is advanced
+     */
+    void write(String file_id, int chunk_no, ByteBuffer chunk) throws IOException;
+
+    /**
+     * Reads a chunk into a buffer, from its position
+     *
+     * @return false if the chunk is not stored
+     */
+    boolean read(String file_id, int chunk_no, ByteBuffer buffer) throws IOException;
+
+    /**
+     * @return false if the chunk was not stored
+     */
+    boolean delete(String file_id, int chunk_no);
+
+    /**
+     * Deletes several chunks, which the store may do at once
+     *
+     * @return Chunks that were stored and were deleted
+     */
+    default List<Chunk> delete(List<Chunk> chunks) {
+        List<Chunk> deleted = new ArrayList<>();
+
+        for (Chunk chunk : chunks)
+            if (delete(chunk.getFile_id(), chunk.getChunk_no()))
+                deleted.add(chunk);
+
+        return deleted;
+    }
+
+    /**
+     * Deletes all the chunks of a file
+     */
+    void deleteFile(String file_id);
+
+    String getState();
+}
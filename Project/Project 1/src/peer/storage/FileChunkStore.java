@@ -0,0 +1,88 @@
+package peer.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Chunk store that keeps each chunk in its own file, at <folder>/<file id>/<chunk number>
+ */
+public class FileChunkStore implements ChunkStore {
+    private final String folder;
+
+    public FileChunkStore(String folder) {
+        this.folder = folder;
+
+        File directory = new File(folder);
+
+        if (!directory.exists())
+            directory.mkdirs();
+    }
+
+    @Override
+    public void write(String file_id, int chunk_no, ByteBuffer chunk) throws IOException {
+        File directory = new File(folder + file_id);
+
+        if (!directory.exists() && !directory.mkdirs()) // Create folder for file
+            throw new IOException("Failed to create folder to store chunk");
+
+        try (FileChannel channel = FileChannel.open(getPath(file_id, chunk_no), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Nothing is written if empty chunk
+            while (chunk.hasRemaining())
+                channel.write(chunk);
+        }
+    }
+
+    @Override
+    public boolean read(String file_id, int chunk_no, ByteBuffer buffer) throws IOException {
+        try (FileChannel channel = FileChannel.open(getPath(file_id, chunk_no), StandardOpenOption.READ)) {
+            // Until the buffer is full or EOF is reached
+            while (buffer.hasRemaining() && channel.read(buffer) != -1);
+
+            return true;
+        }
+
+        catch (NoSuchFileException e) {
+            return false; // Chunk is not stored
+        }
+    }
+
+    @Override
+    public boolean delete(String file_id, int chunk_no) {
+        return getPath(file_id, chunk_no).toFile().delete();
+    }
+
+    @Override
+    public void deleteFile(String file_id) {
+        File directory = new File(folder + file_id);
+        File[] chunks = directory.listFiles();
+
+        if (chunks == null)
+            return; // No chunks of the file
+
+        // Remove all chunks from directory
+        for (File chunk : chunks)
+            chunk.delete();
+
+        directory.delete();
+    }
+
+    private Path getPath(String file_id, int chunk_no) {
+        return Paths.get(folder + file_id + '/' + chunk_no);
+    }
+
+    @Override
+    public String getState() {
+        return "FILES: " + folder + '\n';
+    }
+
+    @Override
+    public void close() {
+    }
+}
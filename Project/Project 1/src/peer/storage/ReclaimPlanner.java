@@ -0,0 +1,172 @@
+package peer.storage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Chooses the stored chunks to remove to free a number of bytes.
+ * Chunks are indexed by their replication surplus (perceived minus desired replication degree), and those
+ * with the largest surplus are removed first, since other peers still hold more replicas of them than needed
+ * and removing them won't make anyone back them up again. Within a surplus, the largest chunks are removed
+ * first, so fewer REMOVED messages are sent, except for the last one, which is the smallest chunk that frees
+ * what is left, so no more bytes than needed are freed.
+ * The index is kept up to date as chunks are stored and removed and as their replication degrees change, so
+ * a plan only visits the chunks it removes, instead of sorting every stored chunk.
+ */
+public class ReclaimPlanner {
+    private final ConcurrentSkipListMap<Key, Chunk> index; // Largest surplus first, then smallest chunk first
+    private final ConcurrentHashMap<Chunk, Key> keys; // Where each chunk is in the index, by identity
+
+    /**
+     * Position of a chunk in the index, as of its last update
+     */
+    private static class Key implements Comparable<Key> {
+        private final int surplus;
+        private final int size;
+        private final String file_id;
+        private final int chunk_no;
+
+        Key(int surplus, int size, String file_id, int chunk_no) {
+            this.surplus = surplus;
+            this.size = size;
+            this.file_id = file_id;
+            this.chunk_no = chunk_no;
+        }
+
+        Key(Chunk chunk) {
+            this(getSurplus(chunk), chunk.getSize(), chunk.getFile_id(), chunk.getChunk_no());
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            if (surplus != other.surplus)
+                return Integer.compare(other.surplus, surplus);
+
+            if (size != other.size)
+                return Integer.compare(size, other.size);
+
+            int by_file = file_id.compareTo(other.file_id);
+            return by_file != 0 ? by_file : Integer.compare(chunk_no, other.chunk_no);
+        }
+    }
+
+    public ReclaimPlanner() {
+        this.index = new ConcurrentSkipListMap<>();
+        this.keys = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Indexes a stored chunk
+     */
+    public void add(Chunk chunk) {
+        keys.compute(chunk, (indexed, old) -> {
+            if (old != null)
+                index.remove(old);
+
+            Key key = new Key(indexed);
+            index.put(key, indexed);
+            return key;
+        });
+    }
+
+    /**
+     * Moves a chunk to its surplus after its perceived replication degree changed. Ignored if it is not indexed
+     */
+    public void update(Chunk chunk) {
+        keys.computeIfPresent(chunk, (indexed, old) -> {
+            Key key = new Key(indexed); // Read after the change, and after any update that came before it
+
+            if (key.compareTo(old) != 0) {
+                index.remove(old);
+                index.put(key, indexed);
+            }
+
+            return key;
+        });
+    }
+
+    public void remove(Chunk chunk) {
+        keys.computeIfPresent(chunk, (indexed, old) -> {
+            index.remove(old);
+            return null;
+        });
+    }
+
+    /**
+     * @param needed Bytes to free
+     * @return Chunks to remove, in the order they should be removed
+     */
+    public List<Chunk> plan(long needed) {
+        List<Chunk> plan = new ArrayList<>();
+        Map.Entry<Key, Chunk> tier = index.firstEntry(); // Smallest chunk of the largest surplus
+
+        while (needed > 0 && tier != null) {
+            int surplus = tier.getKey().surplus;
+            Key next_tier = first(surplus - 1);
+            Map.Entry<Key, Chunk> largest = index.lowerEntry(next_tier);
+
+            // Chunks above largest are already in the plan
+            while (needed > 0 && largest != null && largest.getKey().surplus == surplus) {
+                Map.Entry<Key, Chunk> fit = index.ceilingEntry(new Key(surplus, (int) Math.min(needed, Integer.MAX_VALUE),
+                        "", Integer.MIN_VALUE));
+
+                if (fit != null && fit.getKey().compareTo(largest.getKey()) <= 0) {
+                    plan.add(fit.getValue()); // Smallest chunk that frees what is left
+                    needed -= fit.getKey().size;
+                    break;
+                }
+
+                plan.add(largest.getValue());
+                needed -= largest.getKey().size;
+                largest = index.lowerEntry(largest.getKey());
+            }
+
+            tier = index.ceilingEntry(next_tier);
+        }
+
+        return plan;
+    }
+
+    /**
+     * @return Key before every chunk with a surplus
+     */
+    private static Key first(int surplus) {
+        return new Key(surplus, Integer.MIN_VALUE, "", Integer.MIN_VALUE);
+    }
+
+    public static int getSurplus(Chunk chunk) {
+        return chunk.getPerceivedRP() - chunk.getDesired_rep_deg();
+    }
+
+    /**
+     * @return Summary of a plan, with the chunks and bytes it removes for each surplus
+     */
+    public static String describe(List<Chunk> plan, long needed) {
+        TreeMap<Integer, long[]> surpluses = new TreeMap<>(Comparator.reverseOrder()); // Chunks and bytes
+        long freed = 0;
+
+        for (Chunk chunk : plan) {
+            long[] totals = surpluses.computeIfAbsent(getSurplus(chunk), surplus -> new long[2]);
+            totals[0]++;
+            totals[1] += chunk.getSize();
+            freed += chunk.getSize();
+        }
+
+        StringBuilder result = new StringBuilder();
+        result.append("RECLAIM plan: remove ").append(plan.size()).append(" chunks, freeing ").append(freed)
+                .append(" of ").append(needed).append(" bytes needed\n");
+
+        for (Map.Entry<Integer, long[]> entry : surpluses.entrySet())
+            result.append("SURPLUS: ").append(entry.getKey())
+                    .append(" - CHUNKS: ").append(entry.getValue()[0])
+                    .append(" - BYTES: ").append(entry.getValue()[1])
+                    .append('\n');
+
+        return result.toString();
+    }
+}
@@ -0,0 +1,155 @@
+package peer.storage;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free set of the peers that hold a replica of a chunk.
+ * Peer ids in [0, 64) are kept as bits of a single word, updated with CAS. Any other id falls back to a
+ * concurrent set, which is only allocated the first time such an id is seen.
+ */
+public class ReplicaSet implements Serializable {
+    private static final long serialVersionUID = 6616425573103194360L; // Of the snapshots already written
+    private static final int WORD_BITS = Long.SIZE;
+    private transient AtomicLong low_peers; // Bit i is set if peer i holds the chunk
+    private transient AtomicInteger size;
+    private transient volatile Set<Integer> high_peers; // Peers with ids outside [0, 64)
+
+    public ReplicaSet() {
+        low_peers = new AtomicLong(0);
+        size = new AtomicInteger(0);
+    }
+
+    /**
+     * Adds a peer to the set
+     *
+     * @param peer_id Peer identifier
+     * @return true if the peer was not in the set
+     */
+    public boolean add(int peer_id) {
+        boolean added;
+
+        if (isLowPeer(peer_id)) {
+            long bit = 1L << peer_id;
+            added = (low_peers.getAndUpdate(bits -> bits | bit) & bit) == 0;
+        }
+
+        else
+            added = getHighPeers().add(peer_id);
+
+        if (added)
+            size.incrementAndGet();
+
+        return added;
+    }
+
+    /**
+     * Removes a peer from the set
+     *
+     * @param peer_id Peer identifier
+     * @return true if the peer was in the set
+     */
+    public boolean remove(int peer_id) {
+        boolean removed;
+
+        if (isLowPeer(peer_id)) {
+            long bit = 1L << peer_id;
+            removed = (low_peers.getAndUpdate(bits -> bits & ~bit) & bit) != 0;
+        }
+
+        else
+            removed = high_peers != null && high_peers.remove(peer_id);
+
+        if (removed)
+            size.decrementAndGet();
+
+        return removed;
+    }
+
+    public boolean contains(int peer_id) {
+        if (isLowPeer(peer_id))
+            return (low_peers.get() & (1L << peer_id)) != 0;
+
+        return high_peers != null && high_peers.contains(peer_id);
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return Snapshot of the peers in the set
+     */
+    public int[] toArray() {
+        long bits = low_peers.get();
+        Set<Integer> peers = high_peers;
+        int[] array = new int[Long.bitCount(bits) + (peers == null ? 0 : peers.size())];
+        int i = 0;
+
+        while (bits != 0 && i < array.length) {
+            array[i++] = Long.numberOfTrailingZeros(bits);
+            bits &= bits - 1; // Clear lowest bit
+        }
+
+        if (peers != null)
+            for (int peer_id : peers) {
+                if (i == array.length)
+                    break; // Added after the array was sized
+
+                array[i++] = peer_id;
+            }
+
+        return i == array.length ? array : Arrays.copyOf(array, i);
+    }
+
+    private static boolean isLowPeer(int peer_id) {
+        return peer_id >= 0 && peer_id < WORD_BITS;
+    }
+
+    private Set<Integer> getHighPeers() {
+        Set<Integer> peers = high_peers;
+
+        if (peers == null) {
+            synchronized (this) { // Only taken the first time a high peer id is seen
+                if (high_peers == null)
+                    high_peers = ConcurrentHashMap.newKeySet();
+
+                peers = high_peers;
+            }
+        }
+
+        return peers;
+    }
+
+    /* Serialization: the default fields, then the low peers word followed by the high peer ids */
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        Set<Integer> peers = high_peers;
+        Integer[] high = peers == null ? new Integer[0] : peers.toArray(new Integer[0]);
+
+        out.defaultWriteObject();
+        out.writeLong(low_peers.get());
+        out.writeInt(high.length);
+
+        for (int peer_id : high)
+            out.writeInt(peer_id);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        low_peers = new AtomicLong(in.readLong());
+        size = new AtomicInteger(Long.bitCount(low_peers.get()));
+
+        int high_length = in.readInt();
+
+        for (int i = 0; i < high_length; i++)
+            add(in.readInt());
+    }
+}
@@ -0,0 +1,776 @@
+package peer.storage;
+
+import utils.Pair;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chunk store that appends the chunks to segment files of up to SEGMENT_SIZE bytes, instead of keeping each
+ * chunk in its own file.
+ * An in-memory index maps each chunk to where its body is in a segment, and chunks are read from there with
+ * positional reads. Each record in a segment has the file id and number of its chunk, so the index can be
+ * rebuilt by scanning the segments. The index is also saved to a file when the store is closed and after
+ * compactions, and on startup only the records appended after it was saved are scanned.
+ * Deleting a chunk appends a tombstone record. A background thread compacts the segments in which more than
+ * COMPACTION_THRESHOLD of the bytes belong to replaced or deleted chunks, by appending their live chunks to
+ * the current segment and deleting them. If the current segment is the one to compact, and has at least
+ * MIN_ROLLOVER_GARBAGE bytes of garbage, a new segment is started first.
+ * Records are appended under the store's lock, which only covers copying them to the OS. Writes and deletes
+ * only return once their records are forced to disk, and the forces are group committed outside the lock:
+ * one thread forces the segments for every record appended before it started, while the others wait for it.
+ * If the force fails, the chunks of the records go back to where they were in the index.
+ * Selected with -Dpeer.chunk_store=segments.
+ */
+public class SegmentChunkStore implements ChunkStore {
+    static final String SEGMENTS_FOLDER = "/segments/";
+    public static final long SEGMENT_SIZE = Long.getLong("peer.segment_size", 64 * 1024 * 1024);
+    private static final double COMPACTION_THRESHOLD = 0.5; // Fraction of garbage bytes
+    private static final long MIN_ROLLOVER_GARBAGE = SEGMENT_SIZE / 4; // Bytes, so small segments aren't rolled over
+    private static final long COMPACTION_INTERVAL = 10000; // ms
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String INDEX_FILE = "index";
+    private static final int RECORD_HEADER = 2 * Integer.BYTES + Short.BYTES; // Chunk number, length, file id length
+    private static final int TOMBSTONE = -1; // Length of a tombstone record
+    private final String folder;
+    private final TreeMap<Integer, Segment> segments; // By number, the last one is appended to
+    private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, Location>> index; // By file id and chunk number
+    private final ScheduledExecutorService compactor;
+    private long compactions;
+    private final Object sync_lock; // Guards the group commit
+    private final Set<Segment> dirty; // Segments with records that weren't forced yet
+    private long sync_requests; // Numbers the records waiting to be forced, in the order they were appended
+    private long synced; // Records up to this number are on disk
+    private boolean syncing; // A thread is forcing the segments
+    private long forces;
+
+    private static class Segment {
+        private final int number;
+        private final Path path;
+        private volatile FileChannel channel;
+        private volatile boolean deleted;
+        private long size; // Bytes appended
+        private long live; // Bytes of the records of chunks in the index
+
+        Segment(int number, Path path) throws IOException {
+            this.number = number;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE);
+            this.size = channel.size();
+        }
+
+        /**
+         * @return Channel of the segment, opened again if the interrupt of a thread using it closed it
+         */
+        FileChannel getChannel() throws IOException {
+            FileChannel current = channel;
+
+            if (!current.isOpen() && !deleted) {
+                synchronized (this) {
+                    if (!channel.isOpen() && !deleted)
+                        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+                    current = channel;
+                }
+            }
+
+            return current;
+        }
+
+        double getGarbageRatio() {
+            return size == 0 ? 0 : (double) (size - live) / size;
+        }
+    }
+
+    private static class Location {
+        private final Segment segment;
+        private final long offset; // Of the body
+        private final int length; // Of the body
+        private final int record_size;
+
+        Location(Segment segment, long offset, int length, int record_size) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.record_size = record_size;
+        }
+    }
+
+    /**
+     * Record read from a segment
+     */
+    private static class Record {
+        private final String file_id;
+        private final int chunk_no;
+        private final int length; // Of the body, or TOMBSTONE
+        private final long offset; // Of the body
+        private final int record_size;
+
+        Record(String file_id, int chunk_no, int length, long offset, int record_size) {
+            this.file_id = file_id;
+            this.chunk_no = chunk_no;
+            this.length = length;
+            this.offset = offset;
+            this.record_size = record_size;
+        }
+    }
+
+    public SegmentChunkStore(String folder) throws IOException {
+        this.folder = folder;
+        this.segments = new TreeMap<>();
+        this.index = new ConcurrentHashMap<>();
+        this.sync_lock = new Object();
+        this.dirty = ConcurrentHashMap.newKeySet();
+
+        Files.createDirectories(Paths.get(folder));
+        recover();
+
+        compactor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "segment-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compact, COMPACTION_INTERVAL, COMPACTION_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /* -- OPERATIONS -- */
+
+    @Override
+    public void write(String file_id, int chunk_no, ByteBuffer chunk) throws IOException {
+        Location location, old;
+
+        synchronized (this) {
+            old = getLocation(file_id, chunk_no);
+            location = append(file_id, chunk_no, chunk);
+            apply(file_id, chunk_no, location);
+        }
+
+        try {
+            sync(); // Stored only once it is on disk
+        }
+
+        catch (IOException e) {
+            undo(file_id, chunk_no, location, old);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean read(String file_id, int chunk_no, ByteBuffer buffer) throws IOException {
+        while (true) {
+            Location location = getLocation(file_id, chunk_no);
+
+            if (location == null)
+                return false; // Chunk is not stored
+
+            int start = buffer.position(), limit = buffer.limit();
+            buffer.limit(Math.min(limit, start + location.length));
+
+            try {
+                FileChannel channel = location.segment.getChannel();
+
+                while (buffer.hasRemaining())
+                    if (channel.read(buffer, location.offset + buffer.position() - start) == -1)
+                        throw new EOFException("Chunk is past the end of its segment");
+
+                return true;
+            }
+
+            catch (ClosedByInterruptException e) {
+                throw e; // The next read opens the segment again
+            }
+
+            catch (ClosedChannelException e) {
+                buffer.position(start); // Segment was compacted while reading, read the chunk from where it was moved
+            }
+
+            finally {
+                buffer.limit(limit);
+            }
+        }
+    }
+
+    @Override
+    public boolean delete(String file_id, int chunk_no) {
+        Location old = null;
+
+        try {
+            if ((old = appendTombstone(file_id, chunk_no)) == null)
+                return false; // Chunk is not stored
+
+            sync();
+            return true;
+        }
+
+        catch (IOException e) {
+            if (old != null)
+                undo(file_id, chunk_no, null, old);
+
+            System.err.println("ERROR: Failed to delete chunk from segment.");
+            return false;
+        }
+    }
+
+    @Override
+    public List<Chunk> delete(List<Chunk> chunks) {
+        List<Chunk> deleted = new ArrayList<>();
+        List<Location> old = new ArrayList<>(); // Where the deleted chunks were
+
+        try {
+            synchronized (this) {
+                for (Chunk chunk : chunks) {
+                    Location location = appendTombstone(chunk.getFile_id(), chunk.getChunk_no());
+
+                    if (location != null) {
+                        deleted.add(chunk);
+                        old.add(location);
+                    }
+                }
+            }
+
+            sync(); // All the tombstones at once
+            return deleted;
+        }
+
+        catch (IOException e) {
+            for (int i = 0; i < deleted.size(); i++)
+                undo(deleted.get(i).getFile_id(), deleted.get(i).getChunk_no(), null, old.get(i));
+
+            System.err.println("ERROR: Failed to delete chunks from segment.");
+            return new ArrayList<>();
+        }
+    }
+
+    @Override
+    public void deleteFile(String file_id) {
+        Map<Integer, Location> deleted = new HashMap<>(); // Where the chunks were
+
+        try {
+            synchronized (this) {
+                Map<Integer, Location> chunks = index.get(file_id);
+
+                if (chunks == null)
+                    return; // No chunks of the file
+
+                for (Integer chunk_no : chunks.keySet())
+                    deleted.put(chunk_no, appendTombstone(file_id, chunk_no));
+            }
+
+            sync(); // All the tombstones at once
+        }
+
+        catch (IOException e) {
+            for (Map.Entry<Integer, Location> entry : deleted.entrySet())
+                undo(file_id, entry.getKey(), null, entry.getValue());
+
+            System.err.println("ERROR: Failed to delete chunks from segment.");
+        }
+    }
+
+    /**
+     * @return Location the chunk had, or null if it is not stored
+     */
+    private synchronized Location appendTombstone(String file_id, int chunk_no) throws IOException {
+        Location old = getLocation(file_id, chunk_no);
+
+        if (old == null)
+            return null;
+
+        append(file_id, chunk_no, null);
+        remove(file_id, chunk_no);
+        return old;
+    }
+
+    private Location getLocation(String file_id, int chunk_no) {
+        Map<Integer, Location> chunks = index.get(file_id);
+        return chunks == null ? null : chunks.get(chunk_no);
+    }
+
+    /* -- SEGMENTS -- */
+
+    /**
+     * Appends a record to the last segment, starting a new segment if it doesn't fit
+     *
+     * @param body Body of the chunk, or null for a tombstone
+     * @return Location of the chunk
+     */
+    private Location append(String file_id, int chunk_no, ByteBuffer body) throws IOException {
+        byte[] id = file_id.getBytes(StandardCharsets.US_ASCII);
+        int length = body == null ? TOMBSTONE : body.remaining();
+        int record_size = RECORD_HEADER + id.length + Math.max(length, 0);
+        Segment segment = segments.lastEntry().getValue();
+
+        if (segment.size > 0 && segment.size + record_size > SEGMENT_SIZE)
+            segment = newSegment(segment.number + 1);
+
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER + id.length);
+        header.putInt(chunk_no).putInt(length).putShort((short) id.length).put(id).flip();
+
+        ByteBuffer[] record = body == null ? new ByteBuffer[]{header} : new ByteBuffer[]{header, body};
+        FileChannel channel = segment.getChannel();
+        channel.position(segment.size);
+
+        while (header.hasRemaining() || (body != null && body.hasRemaining()))
+            channel.write(record);
+
+        Location location = new Location(segment, segment.size + header.capacity(), length, record_size);
+        segment.size += record_size;
+        dirty.add(segment);
+
+        return location;
+    }
+
+    /**
+     * Waits until the records appended so far are on disk. If no other thread is forcing the segments, forces
+     * them for every record appended until now
+     */
+    private void sync() throws IOException {
+        long target;
+
+        synchronized (sync_lock) {
+            long request = ++sync_requests; // The record of this thread was appended before this
+
+            while (syncing && synced < request) {
+                try {
+                    sync_lock.wait(); // Another thread is forcing the segments
+                }
+
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the chunk store to be forced");
+                }
+            }
+
+            if (synced >= request)
+                return; // Forced by another thread
+
+            syncing = true;
+            target = sync_requests; // Every record appended until now
+        }
+
+        boolean forced = false;
+
+        try {
+            forceDirty();
+            forced = true;
+        }
+
+        finally {
+            synchronized (sync_lock) {
+                syncing = false;
+
+                if (forced) {
+                    synced = Math.max(synced, target);
+                    forces++;
+                }
+
+                sync_lock.notifyAll(); // On failure, a waiting thread tries again
+            }
+        }
+    }
+
+    /**
+     * Forces the segments with records that weren't forced yet
+     */
+    private void forceDirty() throws IOException {
+        for (Segment segment : dirty) {
+            dirty.remove(segment); // Before forcing, so records appended meanwhile mark it again
+
+            try {
+                segment.getChannel().force(false);
+            }
+
+            catch (IOException e) {
+                if (e instanceof ClosedChannelException && segment.deleted)
+                    continue; // Compacted, its live chunks were forced where they were moved to
+
+                dirty.add(segment); // So the thread that tries again forces it
+                throw e;
+            }
+        }
+    }
+
+    private Segment newSegment(int number) throws IOException {
+        Segment segment = new Segment(number, Paths.get(folder + String.format("%s%08d", SEGMENT_PREFIX, number)));
+        segments.put(number, segment);
+
+        return segment;
+    }
+
+    /**
+     * Reads the record at a position of a segment
+     *
+     * @return Record, or null if the segment ends before the end of the record
+     */
+    private static Record readRecord(Segment segment, long position) throws IOException {
+        FileChannel channel = segment.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+
+        if (!readFully(channel, header, position))
+            return null;
+
+        int chunk_no = header.getInt(0), length = header.getInt(Integer.BYTES), id_length = header.getShort(2 * Integer.BYTES);
+        ByteBuffer id = ByteBuffer.allocate(id_length);
+
+        if (length < TOMBSTONE || id_length < 0 || !readFully(channel, id, position + RECORD_HEADER))
+            return null;
+
+        long offset = position + RECORD_HEADER + id_length;
+        int record_size = RECORD_HEADER + id_length + Math.max(length, 0);
+
+        if (position + record_size > segment.size)
+            return null; // Body was not completely written
+
+        return new Record(new String(id.array(), StandardCharsets.US_ASCII), chunk_no, length, offset, record_size);
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, position + buffer.position()) == -1)
+                return false;
+
+        return true;
+    }
+
+    /* -- INDEX -- */
+
+    /**
+     * Updates the index with a record
+     */
+    private void apply(String file_id, int chunk_no, Location location) {
+        if (location.length == TOMBSTONE) {
+            remove(file_id, chunk_no);
+            return;
+        }
+
+        Location old = index.computeIfAbsent(file_id, id -> new ConcurrentHashMap<>()).put(chunk_no, location);
+        location.segment.live += location.record_size;
+
+        if (old != null)
+            old.segment.live -= old.record_size;
+    }
+
+    /**
+     * Puts a chunk back where it was before a record that failed to be forced, unless it was written or deleted
+     * again since
+     *
+     * @param failed Location the record gave the chunk, or null for a tombstone
+     * @param old Location of the chunk before the record, or null if it wasn't stored
+     */
+    private synchronized void undo(String file_id, int chunk_no, Location failed, Location old) {
+        if (getLocation(file_id, chunk_no) != failed)
+            return; // Changed since
+
+        if (old != null && segments.get(old.segment.number) == old.segment)
+            apply(file_id, chunk_no, old);
+
+        else // Segment was compacted, and the chunk wasn't moved because the index didn't point to it
+            remove(file_id, chunk_no);
+    }
+
+    private void remove(String file_id, int chunk_no) {
+        Map<Integer, Location> chunks = index.get(file_id);
+
+        if (chunks == null)
+            return;
+
+        Location old = chunks.remove(chunk_no);
+
+        if (old != null)
+            old.segment.live -= old.record_size;
+
+        if (chunks.isEmpty())
+            index.remove(file_id);
+    }
+
+    /**
+     * Opens the segments and rebuilds the index, from the saved index and the records appended after it was saved
+     * or, if there is no valid saved index, from all the records
+     */
+    private void recover() throws IOException {
+        File[] files = new File(folder).listFiles((directory, name) -> name.startsWith(SEGMENT_PREFIX));
+
+        if (files != null)
+            for (File file : files)
+                newSegment(Integer.parseInt(file.getName().substring(SEGMENT_PREFIX.length())));
+
+        long[] saved = loadIndex(); // Segment and position the saved index is up to date with
+
+        if (saved == null) {
+            index.clear();
+
+            for (Segment segment : segments.values())
+                segment.live = 0;
+        }
+
+        for (Segment segment : segments.values()) {
+            if (saved != null && segment.number < saved[0])
+                continue;
+
+            long position = saved != null && segment.number == saved[0] ? saved[1] : 0;
+            Record record;
+
+            while (position < segment.size && (record = readRecord(segment, position)) != null) {
+                apply(record.file_id, record.chunk_no, new Location(segment, record.offset, record.length, record.record_size));
+                position += record.record_size;
+            }
+
+            if (position < segment.size) { // Incomplete record, written when the peer stopped
+                segment.getChannel().truncate(position);
+                segment.size = position;
+            }
+        }
+
+        if (segments.isEmpty())
+            newSegment(0);
+    }
+
+    /**
+     * @return Number of the last segment and its size when the index was saved, or null if there is no valid saved index
+     */
+    private long[] loadIndex() {
+        File file = new File(folder + INDEX_FILE);
+
+        if (!file.exists())
+            return null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            long[] saved = {in.readInt(), in.readLong()};
+            int files = in.readInt();
+
+            for (int i = 0; i < files; i++) {
+                String file_id = in.readUTF();
+                int chunks = in.readInt();
+
+                for (int j = 0; j < chunks; j++) {
+                    int chunk_no = in.readInt(), segment_number = in.readInt(), length = in.readInt(), record_size = in.readInt();
+                    long offset = in.readLong();
+                    Segment segment = segments.get(segment_number);
+
+                    if (segment == null || offset + length > segment.size)
+                        return null; // Index doesn't match the segments
+
+                    apply(file_id, chunk_no, new Location(segment, offset, length, record_size));
+                }
+            }
+
+            return saved;
+        }
+
+        catch (IOException e) {
+            System.err.println("WARNING: Failed to load chunk store index. Scanning the segments.");
+            return null;
+        }
+    }
+
+    /**
+     * Saves the index, replacing the saved one only once it is complete
+     */
+    private void saveIndex() throws IOException {
+        Path path = Paths.get(folder + INDEX_FILE), temporary_path = Paths.get(folder + INDEX_FILE + ".tmp");
+        Segment last = segments.lastEntry().getValue();
+
+        try (FileOutputStream file = new FileOutputStream(temporary_path.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(last.number);
+            out.writeLong(last.size);
+            out.writeInt(index.size());
+
+            for (Map.Entry<String, ConcurrentHashMap<Integer, Location>> entry : index.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().size());
+
+                for (Map.Entry<Integer, Location> chunk : entry.getValue().entrySet()) {
+                    Location location = chunk.getValue();
+                    out.writeInt(chunk.getKey());
+                    out.writeInt(location.segment.number);
+                    out.writeInt(location.length);
+                    out.writeInt(location.record_size);
+                    out.writeLong(location.offset);
+                }
+            }
+
+            out.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(temporary_path, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /* -- COMPACTION -- */
+
+    private void compact() {
+        try {
+            Segment segment;
+            int last;
+
+            synchronized (this) {
+                last = segments.lastKey(); // Segments started by this pass wait for the next one
+            }
+
+            while ((segment = pickSegment(last)) != null)
+                compact(segment);
+        }
+
+        catch (IOException e) {
+            System.err.println("ERROR: Failed to compact chunk store segments.");
+        }
+    }
+
+    /**
+     * Picks the segment with the most garbage, if over the threshold. If that is the segment being appended to,
+     * a new segment is started so it can be compacted
+     *
+     * @param max_number Number of the last segment that can be picked
+     * @return Segment that isn't being appended to, or null if none has to be compacted
+     */
+    private synchronized Segment pickSegment(int max_number) throws IOException {
+        Segment last = segments.lastEntry().getValue(), picked = null;
+
+        for (Segment segment : segments.headMap(max_number, true).values())
+            if (segment.getGarbageRatio() > COMPACTION_THRESHOLD &&
+                    (segment != last || segment.size - segment.live >= MIN_ROLLOVER_GARBAGE) &&
+                    (picked == null || segment.getGarbageRatio() > picked.getGarbageRatio()))
+                picked = segment;
+
+        if (picked == last)
+            newSegment(last.number + 1); // Roll over
+
+        return picked;
+    }
+
+    /**
+     * Moves the live chunks of a segment to the last segment and deletes it.
+     * Tombstones are kept, unless no older segment remains for them to hide chunks in, or their chunk was stored
+     * again after them.
+     */
+    private void compact(Segment segment) throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(Storage.MAX_CHUNK_SIZE);
+        List<Pair<Record, Location>> moved = new ArrayList<>(); // Records of the moved chunks, and where they are
+        long position = 0;
+        Record record;
+
+        // Segment is no longer appended to, so it can be read without holding the lock
+        while (position < segment.size && (record = readRecord(segment, position)) != null) {
+            position += record.record_size;
+
+            if (record.length == TOMBSTONE) {
+                synchronized (this) {
+                    if (segments.firstKey() != segment.number && getLocation(record.file_id, record.chunk_no) == null)
+                        append(record.file_id, record.chunk_no, null);
+                }
+
+                continue;
+            }
+
+            Location location = getLocation(record.file_id, record.chunk_no);
+
+            if (location == null || location.segment != segment || location.offset != record.offset)
+                continue; // Chunk was replaced or deleted
+
+            body.clear().limit(record.length);
+
+            if (!readFully(segment.getChannel(), body, record.offset))
+                throw new EOFException("Chunk is past the end of its segment");
+
+            body.flip();
+
+            synchronized (this) {
+                if (getLocation(record.file_id, record.chunk_no) == location) { // Not replaced or deleted while it was read
+                    Location new_location = append(record.file_id, record.chunk_no, body);
+                    apply(record.file_id, record.chunk_no, new_location);
+                    moved.add(Pair.create(record, new_location));
+                }
+            }
+        }
+
+        try {
+            sync(); // Moved chunks are on disk before the segment is deleted
+        }
+
+        catch (IOException e) {
+            for (Pair<Record, Location> move : moved) { // Read them from the segment again
+                Record moved_record = move.first;
+                undo(moved_record.file_id, moved_record.chunk_no, move.second, new Location(segment,
+                        moved_record.offset, moved_record.length, moved_record.record_size));
+            }
+
+            throw e;
+        }
+
+        synchronized (this) {
+            segments.remove(segment.number);
+            saveIndex(); // Before deleting the segment the saved index may point to
+            compactions++;
+        }
+
+        segment.deleted = true;
+        segment.channel.close();
+        Files.delete(segment.path);
+    }
+
+    @Override
+    public synchronized String getState() {
+        long size = 0, live = 0;
+
+        for (Segment segment : segments.values()) {
+            size += segment.size;
+            live += segment.live;
+        }
+
+        long forced;
+
+        synchronized (sync_lock) {
+            forced = forces;
+        }
+
+        return "SEGMENTS: " + segments.size() + '\n' +
+                "SIZE: " + size + '\n' +
+                "LIVE: " + live + '\n' +
+                "FORCES: " + forced + '\n' +
+                "COMPACTIONS: " + compactions + '\n';
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactor.shutdownNow();
+
+        try {
+            compactor.awaitTermination(COMPACTION_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            for (Segment segment : segments.values())
+                segment.getChannel().force(false);
+
+            saveIndex();
+
+            for (Segment segment : segments.values())
+                segment.channel.close();
+        }
+    }
+}
@@ -1,37 +1,70 @@
 package peer.storage;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class Storage implements Serializable {
+    private static final long serialVersionUID = 21975238172399512L; // Of the snapshots already written
     private final String version;
     private final int peer_id;
     public final AtomicLong max_space;
-    public AtomicLong used_space;
+    public AtomicLong used_space; // Stored chunks and reservations for chunks being written, recomputed on load
     private final ConcurrentHashMap<String, Chunk> stored_chunks;
     private final ConcurrentHashMap<String, BackedUpFile> backed_up_files;
+    private transient ConcurrentHashMap<String, BackedUpFile> backed_up_files_by_id; // Index by file id
+    private transient ConcurrentHashMap<String, ChunkSet> stored_chunks_by_file; // Index of stored chunk numbers
     public static final String FILESYSTEM_FOLDER = "./filesystem/peer";
     public static final String BACKUP_FOLDER = "/backup/";
     public static int MAX_CHUNK_SIZE = 64000;
     private Set<String> deleted_files; // For enhanced delete:
+    private transient ConcurrentHashMap<String, ReplicationWatcher> rp_watchers; // Chunks waiting for STOREDs
+    private transient StorageJournal journal; // Journal of mutations since the last snapshot
+    private transient ChunkStore chunk_store; // Bodies of the stored chunks
+    private transient ReclaimPlanner reclaim_planner; // Index of the stored chunks by replication surplus
 
     public Storage(int peer_id, String version) {
         backed_up_files = new ConcurrentHashMap<>();
+        backed_up_files_by_id = new ConcurrentHashMap<>();
         stored_chunks = new ConcurrentHashMap<>();
+        stored_chunks_by_file = new ConcurrentHashMap<>();
         this.peer_id = peer_id;
         this.max_space = new AtomicLong(Long.MAX_VALUE);
         this.used_space = new AtomicLong(0);
         this.version = version;
+        this.rp_watchers = new ConcurrentHashMap<>();
+        this.reclaim_planner = new ReclaimPlanner();
 
         if(version.equals("2.0"))
             deleted_files = ConcurrentHashMap.newKeySet();
     }
 
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        rp_watchers = new ConcurrentHashMap<>();
+        backed_up_files_by_id = new ConcurrentHashMap<>();
+
+        for (BackedUpFile file : backed_up_files.values())
+            backed_up_files_by_id.put(file.getId(), file);
+
+        stored_chunks_by_file = new ConcurrentHashMap<>();
+        reclaim_planner = new ReclaimPlanner();
+        used_space = new AtomicLong(0); // The saved value counts reservations of chunks that were never stored
+
+        for (Chunk chunk : stored_chunks.values()) {
+            indexStoredChunk(chunk);
+            used_space.addAndGet(chunk.getSize());
+        }
+    }
+
     public void makeDirectories() {
         File directory = new File(FILESYSTEM_FOLDER + peer_id + BACKUP_FOLDER);
 
@@ -39,31 +72,81 @@ public class Storage implements Serializable {
             directory.mkdirs();
     }
 
-    public synchronized void updateReplicationDegree(String file_id, int chunk_no, int sender_id, boolean increment) {
+    public void updateReplicationDegree(String file_id, int chunk_no, int sender_id, boolean increment) {
         // Updates perceived_rep_deg for BackedUpFiles
-        BackedUpFile file = null;
-
-        for (BackedUpFile f : backed_up_files.values())
-            if (f.getId().equals(file_id))
-                file = f;
+        BackedUpFile file = getBackedUpFile(file_id);
 
-        if (file != null) // If peer backed up the file
+        if (file != null) { // If peer backed up the file
             if (increment) // Increment
                 file.incrementReplicationDegree(chunk_no, sender_id);
 
             else // Decrement
                 file.decrementReplicationDegree(chunk_no, sender_id);
+        }
 
         else {
             // Updates perceived_rep-deg for stored chunks
             Chunk chunk = stored_chunks.get(getFilePath(file_id, chunk_no));
-            if (chunk != null) { // If peer has chunk
-                if (increment) // Increment
-                    chunk.incrementPerceivedRepDegree(sender_id);
+            if (chunk == null)
+                return; // Peer doesn't have chunk
+
+            if (increment) // Increment
+                chunk.incrementPerceivedRepDegree(sender_id);
 
-                else // Decrement
-                    chunk.decrementPerceivedRepDegree(sender_id);
-            }
+            else // Decrement
+                chunk.decrementPerceivedRepDegree(sender_id);
+
+            reclaim_planner.update(chunk); // Surplus changed
+        }
+
+        if (journal != null)
+            journal.logReplicationDegreeUpdate(file_id, chunk_no, sender_id, increment);
+
+        if (increment)
+            notifyWatcher(file_id, chunk_no);
+    }
+
+    /**
+     * Returns a watcher whose future is completed as soon as the perceived replication degree of a chunk
+     * reaches the desired replication degree. Transmissions of the same chunk share the watcher, which is
+     * only removed when all of them unwatch it
+     *
+     * @param file_id File identifier
+     * @param chunk_no Chunk number
+     * @param desired_rep_deg Desired replication degree
+     * @return Watcher to pass to unwatchReplicationDegree
+     */
+    public ReplicationWatcher watchReplicationDegree(String file_id, int chunk_no, int desired_rep_deg) {
+        ReplicationWatcher watcher = rp_watchers.compute(getFilePath(file_id, chunk_no), (key, current) -> {
+            if (current == null)
+                return new ReplicationWatcher(desired_rep_deg);
+
+            current.desired_rep_deg = Math.max(current.desired_rep_deg, desired_rep_deg);
+            current.references++;
+            return current;
+        });
+
+        notifyWatcher(file_id, chunk_no); // STOREDs may have arrived already
+
+        return watcher;
+    }
+
+    public void unwatchReplicationDegree(String file_id, int chunk_no, ReplicationWatcher watcher) {
+        // Only removed if it is still the watcher of the chunk and no other transmission uses it
+        rp_watchers.computeIfPresent(getFilePath(file_id, chunk_no),
+                (key, current) -> current != watcher || --current.references > 0 ? current : null);
+    }
+
+    private void notifyWatcher(String file_id, int chunk_no) {
+        if (rp_watchers.isEmpty())
+            return; // Not backing up anything
+
+        String key = getFilePath(file_id, chunk_no);
+        ReplicationWatcher watcher = rp_watchers.get(key);
+
+        if (watcher != null && getPerceivedRPById(file_id, chunk_no) >= watcher.desired_rep_deg) {
+            rp_watchers.remove(key, watcher);
+            watcher.future.complete(null); // Wake up backup
         }
     }
 
@@ -78,16 +161,6 @@ public class Storage implements Serializable {
 
     /* -- GETTERS -- */
 
-    public File getFile(String file_id, int chunk_no) {
-        String path = getFilePath(file_id, chunk_no);
-        File file = new File(path);
-
-        if (file.exists() && !file.isDirectory())
-            return file;
-
-        return null;
-    }
-
     public File getFile(String file_pathname) {
         String path = FILESYSTEM_FOLDER + peer_id + '/' + file_pathname.trim();
         File file = new File(path);
@@ -143,11 +216,19 @@ public class Storage implements Serializable {
         return used_space;
     }
 
+    public ChunkStore getChunkStore() {
+        return chunk_store;
+    }
+
+    public BackedUpFile getBackedUpFile(String file_id) {
+        return backed_up_files_by_id.get(file_id);
+    }
+
     public Chunk getStoredChunk(String file_id, int chunk_no) {
         return stored_chunks.get(getFilePath(file_id, chunk_no));
     }
 
-    public synchronized int getPerceivedRP(String file_path, int chunk_no) {
+    public int getPerceivedRP(String file_path, int chunk_no) {
         BackedUpFile file = backed_up_files.get(file_path);
         if (file != null)
             return file.getPerceivedRP(chunk_no);
@@ -159,6 +240,18 @@ public class Storage implements Serializable {
         return 0;
     }
 
+    private int getPerceivedRPById(String file_id, int chunk_no) {
+        BackedUpFile file = getBackedUpFile(file_id);
+        if (file != null)
+            return file.getPerceivedRP(chunk_no);
+
+        Chunk chunk = stored_chunks.get(getFilePath(file_id, chunk_no));
+        if (chunk != null)
+            return chunk.getPerceivedRP();
+
+        return 0;
+    }
+
     public String getFilePath(String file_id) {
         return FILESYSTEM_FOLDER + peer_id + BACKUP_FOLDER + file_id;
     }
@@ -173,77 +266,217 @@ public class Storage implements Serializable {
 
     /* -- SETTERS & ADDS/REMOVES -- */
 
+    public void setJournal(StorageJournal journal) {
+        this.journal = journal;
+    }
+
+    public void setChunkStore(ChunkStore chunk_store) {
+        this.chunk_store = chunk_store;
+    }
+
     public void setMaxSpace(long value) {
         max_space.set(value);
+
+        if (journal != null)
+            journal.logMaxSpaceChanged(value);
     }
 
     public void addBackedUpFile(BackedUpFile file) {
-        backed_up_files.put(file.getPath(), file);
+        BackedUpFile old_file = backed_up_files.put(file.getPath(), file);
+
+        if (old_file != null) // Previous version of the file
+            backed_up_files_by_id.remove(old_file.getId(), old_file);
+
+        backed_up_files_by_id.put(file.getId(), file);
         if(version.equals("2.0"))
             deleted_files.remove(file.getId());
+
+        if (journal != null)
+            journal.logBackedUpFileAdded(file);
     }
 
     public void addStoredChunk(String key, Chunk value){
-        if(stored_chunks.put(key, value) == null)
-            used_space.set(used_space.get() + value.getSize()); // Updates space if chunk is new
+        Chunk old = stored_chunks.put(key, value);
+
+        if (old == null)
+            used_space.addAndGet(value.getSize()); // Updates space if chunk is new
+
+        else
+            reclaim_planner.remove(old);
+
+        indexStoredChunk(value);
+
+        if (journal != null)
+            journal.logChunkStored(value);
+    }
+
+    /**
+     * Adds a stored chunk whose space was reserved with reserveChunkSpace, which becomes used by the chunk
+     */
+    public void commitStoredChunk(String key, Chunk value){
+        Chunk old = stored_chunks.put(key, value);
+
+        if (old != null) {
+            releaseSpace(value.getSize()); // Chunk was already stored, and already uses its space
+            reclaim_planner.remove(old);
+        }
+
+        indexStoredChunk(value);
+
+        if (journal != null)
+            journal.logChunkStored(value);
     }
 
     public void removeBackedUpFile(BackedUpFile file) {
         backed_up_files.remove(file.getPath());
+        backed_up_files_by_id.remove(file.getId(), file);
         if(version.equals("2.0"))
             deleted_files.add(file.getId());
+
+        if (journal != null)
+            journal.logBackedUpFileRemoved(file);
     }
 
-    public Chunk removeRandomChunk() {
-        for (Map.Entry<String, Chunk> entry : stored_chunks.entrySet()) {
-            Chunk chunk = entry.getValue();
-            String path = FILESYSTEM_FOLDER + peer_id + BACKUP_FOLDER + chunk.getFile_id()
-                    + '/' + chunk.getChunk_no(); // Get chunk path
-            File file = new File(path);
-
-            if (file.exists() && !file.isDirectory() && file.delete()) { // If chunk existed ans was deleted
-                removeStoredChunk(entry.getKey()); // Remove from map
-                return chunk;
-            }
-        }
-        return null;
+    /**
+     * Plans the removal of stored chunks until the used space fits in the max space
+     *
+     * @return Chunks to remove, as chosen by ReclaimPlanner
+     */
+    public List<Chunk> planReclaim() {
+        long needed = max_space.get() == 0 ? used_space.get() : used_space.get() - max_space.get();
+
+        return needed <= 0 ? new ArrayList<>() : reclaim_planner.plan(needed);
+    }
+
+    /**
+     * Deletes stored chunks from the chunk store, all at once, and removes them from the map
+     *
+     * @return Chunks that were stored and deleted
+     */
+    public List<Chunk> removeChunks(List<Chunk> chunks) {
+        List<Chunk> stored = new ArrayList<>();
+
+        for (Chunk chunk : chunks)
+            if (stored_chunks.get(getFilePath(chunk.getFile_id(), chunk.getChunk_no())) == chunk)
+                stored.add(chunk); // Not already removed
+
+        List<Chunk> deleted = chunk_store.delete(stored);
+
+        for (Chunk chunk : deleted)
+            removeStoredChunk(getFilePath(chunk.getFile_id(), chunk.getChunk_no()));
+
+        return deleted;
     }
 
     public void removeStoredChunk(String path){
         // Remove from map
         Chunk chunk = stored_chunks.remove(path);
-        if (chunk != null) // Update used space
-            used_space.set(used_space.get() - chunk.getSize());
+        if (chunk != null) { // Update used space
+            used_space.addAndGet(-chunk.getSize());
+            unindexStoredChunk(chunk);
+
+            if (journal != null)
+                journal.logChunkRemoved(chunk);
+        }
     }
 
     public void removeStoredChunk(String file_id, int chunk_no){
         // Remove from map
         Chunk chunk = stored_chunks.remove(getFilePath(file_id, chunk_no));
 
-        if (chunk != null) // Update used space
-            used_space.set(used_space.get() - chunk.getSize());
+        if (chunk != null) { // Update used space
+            used_space.addAndGet(-chunk.getSize());
+            unindexStoredChunk(chunk);
+
+            if (journal != null)
+                journal.logChunkRemoved(chunk);
+        }
     }
 
-    /* BOOLEAN Functions */
+    /**
+     * Atomically reserves the space for a chunk before it is written, so that chunks written at the same time
+     * can't exceed the max space together. The reservation must be either committed with commitStoredChunk
+     * or released with releaseSpace.
+     *
+     * @return false if the peer has the original file or there is no space for the chunk
+     */
+    public boolean reserveChunkSpace(String file_id, int chunk_size){
+        if (isFileBackedUp(file_id))
+            return false; // This peer has original file - cant store chunks
+
+        long used;
+
+        do {
+            used = used_space.get();
 
-    private boolean isThereAvailableSpace(int chunk_size){
-        return used_space.get() + chunk_size < max_space.get() && max_space.get() != 0;
+            if (used + chunk_size >= max_space.get() || max_space.get() == 0)
+                return false; // No space for chunk
+        } while (!used_space.compareAndSet(used, used + chunk_size));
+
+        return true;
+    }
+
+    public void releaseSpace(int chunk_size){
+        used_space.addAndGet(-chunk_size);
     }
 
-    public AtomicBoolean isFileBackedUp(String file_id) {
-        return new AtomicBoolean(backed_up_files.containsValue(new BackedUpFile(file_id)));
+    /* BOOLEAN Functions */
+
+    public boolean isFileBackedUp(String file_id) {
+        return backed_up_files_by_id.containsKey(file_id);
     }
 
     public boolean isChunkStored(String file_id, int chunk_no){
-        return (getFile(file_id, chunk_no) != null);
+        ChunkSet chunks = stored_chunks_by_file.get(file_id);
+        return chunks != null && chunks.contains(chunk_no);
+    }
+
+    /**
+     * @return Numbers of the chunks of a file stored by the peer
+     */
+    public int[] getStoredChunkNumbers(String file_id) {
+        ChunkSet chunks = stored_chunks_by_file.get(file_id);
+        return chunks == null ? new int[0] : chunks.toArray();
+    }
+
+    private void indexStoredChunk(Chunk chunk) {
+        reclaim_planner.add(chunk);
+
+        stored_chunks_by_file.compute(chunk.getFile_id(), (file_id, chunks) -> {
+            if (chunks == null)
+                chunks = new ChunkSet();
+
+            chunks.add(chunk.getChunk_no());
+            return chunks;
+        });
     }
 
-    public boolean canStoreChunk(String file_id, int chunk_size){
-        // This peer has original file - cant store chunks & No space for chunk
-        return (!isFileBackedUp(file_id).get() && isThereAvailableSpace(chunk_size));
+    private void unindexStoredChunk(Chunk chunk) {
+        reclaim_planner.remove(chunk);
+
+        stored_chunks_by_file.computeIfPresent(chunk.getFile_id(), (file_id, chunks) -> {
+            chunks.remove(chunk.getChunk_no());
+            return chunks.isEmpty() ? null : chunks; // Drop files without chunks
+        });
     }
 
     public Set<String> getDeletedFiles() {
         return deleted_files;
     }
+
+    public static class ReplicationWatcher {
+        private volatile int desired_rep_deg; // Highest of the transmissions using it
+        private int references; // Transmissions using it
+        private final CompletableFuture<Void> future;
+
+        ReplicationWatcher(int desired_rep_deg) {
+            this.desired_rep_deg = desired_rep_deg;
+            this.references = 1;
+            this.future = new CompletableFuture<>();
+        }
+
+        public CompletableFuture<Void> getFuture() {
+            return future;
+        }
+    }
 }
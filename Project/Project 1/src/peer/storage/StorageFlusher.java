@@ -0,0 +1,79 @@
+package peer.storage;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Background thread that group-commits the storage journal.
+ * Handlers only mark the storage as dirty, and all the changes made during an interval are made durable
+ * with a single flush and fsync. At most FLUSH_INTERVAL ms of changes are lost if the peer crashes.
+ */
+public class StorageFlusher {
+    public static final long FLUSH_INTERVAL = Long.getLong("peer.flush_interval", 200); // ms
+    private final Storage storage;
+    private final StorageJournal journal;
+    private final AtomicBoolean dirty;
+    private final ScheduledExecutorService executor;
+
+    public StorageFlusher(Storage storage, StorageJournal journal) {
+        this.storage = storage;
+        this.journal = journal;
+        this.dirty = new AtomicBoolean(false);
+        this.executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "storage-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        executor.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public void markDirty() {
+        dirty.set(true);
+    }
+
+    private void flush() {
+        if (!dirty.getAndSet(false))
+            return; // Nothing changed since the last flush
+
+        try {
+            journal.commit(storage);
+        }
+
+        catch (IOException e) {
+            System.err.println("ERROR: Failed to flush storage journal.");
+            dirty.set(true); // Try again on the next interval
+        }
+    }
+
+    /**
+     * Stops the flusher, making any pending changes durable
+     */
+    public void close() {
+        executor.shutdown();
+
+        try {
+            executor.awaitTermination(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        dirty.set(true);
+        flush();
+
+        try {
+            journal.close();
+        }
+
+        catch (IOException e) {
+            System.err.println("ERROR: Failed to close storage journal.");
+        }
+    }
+}
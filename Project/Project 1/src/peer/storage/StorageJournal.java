@@ -0,0 +1,254 @@
+package peer.storage;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Append-only journal of the mutations made to a peer's Storage.
+ * Mutations are appended as small records instead of rewriting the whole Storage, and the journal is
+ * periodically compacted into a snapshot of the Storage. On startup the snapshot is loaded and the
+ * journal is replayed on top of it.
+ * Records are idempotent, so replaying a record whose mutation is already part of the snapshot is harmless.
+ */
+public class StorageJournal {
+    private static final int COMPACTION_THRESHOLD = 10000; // Records appended before compacting
+    private final int peer_id;
+    private FileOutputStream file;
+    private DataOutputStream out;
+    private int records;
+
+    private enum Record {
+        BACKED_UP_FILE_ADDED,
+        BACKED_UP_FILE_REMOVED,
+        CHUNK_STORED,
+        CHUNK_REMOVED,
+        REPLICA_ADDED,
+        REPLICA_REMOVED,
+        MAX_SPACE_CHANGED
+    }
+
+    public StorageJournal(int peer_id) throws IOException {
+        this.peer_id = peer_id;
+        open(true);
+    }
+
+    private void open(boolean append) throws IOException {
+        file = new FileOutputStream(getJournalPath(peer_id), append);
+        out = new DataOutputStream(new BufferedOutputStream(file));
+        records = 0;
+    }
+
+    /* -- RECORDS -- */
+
+    synchronized void logBackedUpFileAdded(BackedUpFile backed_up_file) {
+        try {
+            out.writeByte(Record.BACKED_UP_FILE_ADDED.ordinal());
+            out.writeUTF(backed_up_file.getPath());
+            out.writeUTF(backed_up_file.getId());
+            out.writeInt(backed_up_file.getNumberOfChunks());
+            out.writeInt(backed_up_file.getDesired_replication_degree());
+            records++;
+        }
+
+        catch (IOException e) {
+            System.err.println("ERROR: Failed to write to storage journal.");
+        }
+    }
+
+    synchronized void logBackedUpFileRemoved(BackedUpFile backed_up_file) {
+        try {
+            out.writeByte(Record.BACKED_UP_FILE_REMOVED.ordinal());
+            out.writeUTF(backed_up_file.getPath());
+            out.writeUTF(backed_up_file.getId());
+            records++;
+        }
+
+        catch (IOException e) {
+            System.err.println("ERROR: Failed to write to storage journal.");
+        }
+    }
+
+    synchronized void logChunkStored(Chunk chunk) {
+        try {
+            out.writeByte(Record.CHUNK_STORED.ordinal());
+            out.writeUTF(chunk.getFile_id());
+            out.writeInt(chunk.getChunk_no());
+            out.writeInt(chunk.getSize());
+            out.writeInt(chunk.getDesired_rep_deg());
+            records++;
+        }
+
+        catch (IOException e) {
+            System.err.println("ERROR: Failed to write to storage journal.");
+        }
+    }
+
+    synchronized void logChunkRemoved(Chunk chunk) {
+        try {
+            out.writeByte(Record.CHUNK_REMOVED.ordinal());
+            out.writeUTF(chunk.getFile_id());
+            out.writeInt(chunk.getChunk_no());
+            records++;
+        }
+
+        catch (IOException e) {
+            System.err.println("ERROR: Failed to write to storage journal.");
+        }
+    }
+
+    synchronized void logReplicationDegreeUpdate(String file_id, int chunk_no, int sender_id, boolean increment) {
+        try {
+            out.writeByte((increment ? Record.REPLICA_ADDED : Record.REPLICA_REMOVED).ordinal());
+            out.writeUTF(file_id);
+            out.writeInt(chunk_no);
+            out.writeInt(sender_id);
+            records++;
+        }
+
+        catch (IOException e) {
+            System.err.println("ERROR: Failed to write to storage journal.");
+        }
+    }
+
+    synchronized void logMaxSpaceChanged(long max_space) {
+        try {
+            out.writeByte(Record.MAX_SPACE_CHANGED.ordinal());
+            out.writeLong(max_space);
+            records++;
+        }
+
+        catch (IOException e) {
+            System.err.println("ERROR: Failed to write to storage journal.");
+        }
+    }
+
+    /* -- PERSISTENCE -- */
+
+    /**
+     * Makes the appended records durable, compacting the journal into a new snapshot once it grows too large
+     *
+     * @param storage Storage the journal belongs to
+     */
+    public synchronized void commit(Storage storage) throws IOException {
+        if (records >= COMPACTION_THRESHOLD)
+            compact(storage);
+
+        else {
+            out.flush();
+            file.getFD().sync();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the storage and truncates the journal
+     *
+     * @param storage Storage the journal belongs to
+     */
+    public synchronized void compact(Storage storage) throws IOException {
+        String snapshot_path = Storage.getStoragePath(peer_id);
+        String temporary_path = snapshot_path + ".tmp";
+
+        try (FileOutputStream snapshot = new FileOutputStream(temporary_path);
+             ObjectOutputStream objectOutputStream = new ObjectOutputStream(snapshot)) {
+            objectOutputStream.writeObject(storage);
+            objectOutputStream.flush();
+            snapshot.getFD().sync();
+        }
+
+        // Replace the old snapshot only once the new one is complete
+        Files.move(Paths.get(temporary_path), Paths.get(snapshot_path),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        out.close();
+        open(false); // Truncate journal
+    }
+
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Applies the records of a peer's journal to its storage, stopping at the first incomplete record
+     *
+     * @param peer_id Peer identifier
+     * @param storage Storage loaded from the last snapshot
+     */
+    public static void replay(int peer_id, Storage storage) throws IOException {
+        File journal = new File(getJournalPath(peer_id));
+
+        if (!journal.exists())
+            return;
+
+        Record[] types = Record.values();
+        int replayed = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+            while (true) {
+                int type = in.read();
+
+                if (type == -1 || type >= types.length)
+                    break; // End of journal
+
+                switch (types[type]) {
+                    case BACKED_UP_FILE_ADDED: {
+                        String path = in.readUTF(), file_id = in.readUTF();
+                        int number_of_chunks = in.readInt(), desired_rep_deg = in.readInt();
+                        BackedUpFile current = storage.getBackedUpFile(file_id);
+
+                        if (current == null || !current.getPath().equals(path))
+                            storage.addBackedUpFile(new BackedUpFile(path, file_id, number_of_chunks, desired_rep_deg));
+                        break;
+                    }
+
+                    case BACKED_UP_FILE_REMOVED: {
+                        String path = in.readUTF(), file_id = in.readUTF();
+                        storage.removeBackedUpFile(new BackedUpFile(path, file_id, 0, 0));
+                        break;
+                    }
+
+                    case CHUNK_STORED: {
+                        String file_id = in.readUTF();
+                        int chunk_no = in.readInt(), size = in.readInt(), desired_rep_deg = in.readInt();
+
+                        if (storage.getStoredChunk(file_id, chunk_no) == null)
+                            storage.addStoredChunk(storage.getFilePath(file_id, chunk_no),
+                                    new Chunk(file_id, chunk_no, size, desired_rep_deg, peer_id));
+                        break;
+                    }
+
+                    case CHUNK_REMOVED: {
+                        String file_id = in.readUTF();
+                        storage.removeStoredChunk(file_id, in.readInt());
+                        break;
+                    }
+
+                    case REPLICA_ADDED:
+                    case REPLICA_REMOVED: {
+                        String file_id = in.readUTF();
+                        int chunk_no = in.readInt(), sender_id = in.readInt();
+                        storage.updateReplicationDegree(file_id, chunk_no, sender_id, types[type] == Record.REPLICA_ADDED);
+                        break;
+                    }
+
+                    case MAX_SPACE_CHANGED:
+                        storage.setMaxSpace(in.readLong());
+                        break;
+                }
+
+                replayed++;
+            }
+        }
+
+        catch (EOFException e) {
+            System.err.println("WARNING: Storage journal ends with an incomplete record. Ignoring it.");
+        }
+
+        System.out.printf("Replayed %d storage journal records.\n", replayed);
+    }
+
+    public static String getJournalPath(int peer_id) {
+        return Storage.FILESYSTEM_FOLDER + peer_id + "/storageJournal.log";
+    }
+}
@@ -11,118 +11,221 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousFileChannel;
-import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Backup extends Subprotocol {
+    public static final int WINDOW_SIZE = 16; // Maximum number of chunks in flight
+    private static final int MAX_TRIES = 5;
+    private static final int INITIAL_TIMEOUT = 1000; // ms
     private final File file;
-    private final PutChunkMessage message;
+    private final String file_id;
     private final int replication_degree;
     private final MDB_Channel mdb_channel;
     private final int number_of_chunks;
-    private int chunk_no;
+    private final List<Chunk> chunks; // Stored chunks to back up again, or null to back up a file
+    private final Semaphore window;
+    private final AtomicBoolean gave_up;
+    private final ScheduledExecutorService timer;
 
     public Backup(Peer initiator_peer, String version, File file, String file_id, int number_of_chunks,
                   int replication_degree, MDB_Channel mdb_channel, MC_Channel control_channel) {
         super(control_channel, version, initiator_peer);
 
-        chunk_no = 0;
+        chunks = null;
         this.file = file;
+        this.file_id = file_id;
         this.replication_degree = replication_degree;
         this.number_of_chunks = number_of_chunks;
         this.mdb_channel = mdb_channel;
-        message = new PutChunkMessage(version, initiator_peer.id, file_id, replication_degree, 0);
+        window = new Semaphore(WINDOW_SIZE);
+        gave_up = new AtomicBoolean(false);
+        timer = initiator_peer.scheduler;
     }
 
-    public Backup(Peer initiator_peer, String version, File file, Chunk chunk,
+    /**
+     * Backup of chunks stored by the peer, which must all be of the same file
+     */
+    public Backup(Peer initiator_peer, String version, List<Chunk> chunks,
                   MDB_Channel mdb_channel, MC_Channel control_channel) {
         super(control_channel, version, initiator_peer);
 
-        chunk_no = chunk.getChunk_no();
-        this.file = file;
-        this.replication_degree = chunk.getDesired_rep_deg();
+        this.chunks = chunks;
+        this.file = null;
+        this.file_id = chunks.get(0).getFile_id();
+        this.replication_degree = chunks.get(0).getDesired_rep_deg();
         this.mdb_channel = mdb_channel;
-        this.number_of_chunks = -1;
-        message = new PutChunkMessage(version, initiator_peer.id, chunk.getFile_id(), replication_degree, 0);
+        this.number_of_chunks = chunks.size();
+        window = new Semaphore(WINDOW_SIZE);
+        gave_up = new AtomicBoolean(false);
+        timer = initiator_peer.scheduler;
     }
 
     @Override
     public void run() {
-        Path path = Paths.get(file.getPath());
-        int position = 0;
+        ByteBuffer buffer = initiator_peer.chunk_buffers.lease();
 
         try {
-            AsynchronousFileChannel fileChannel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
-            ByteBuffer buffer = ByteBuffer.allocate(Storage.MAX_CHUNK_SIZE);
+            if (chunks != null) // Backup of stored chunks, read from the chunk store
+                for (Chunk chunk : chunks) {
+                    if (gave_up.get())
+                        break;
+
+                    window.acquire(); // Wait for a free slot in the window
+
+                    try {
+                        if (initiator_peer.storage.getChunkStore().read(file_id, chunk.getChunk_no(), buffer)) {
+                            sendChunk(chunk.getChunk_no(), buffer);
+                            continue;
+                        }
+                    }
+
+                    catch (IOException e) {
+                        buffer.clear();
+                    }
+
+                    System.out.println("ERROR: Failed to read chunk " + chunk.getChunk_no() + ". Skipping...");
+                    window.release();
+                }
 
-            if(number_of_chunks == -1){ // Backup of chunk, not full file
-                if(readAndSendChunk(chunk_no, fileChannel, buffer, position) == -1)
-                    return; // Give up
-            }
-            else{ // Backup of full file. Iterate chunks
-                for (; chunk_no < number_of_chunks; chunk_no++) {
-                   position = readAndSendChunk(chunk_no, fileChannel, buffer, position);
-                   if(position == -1)
-                       return; // Give up
+            else // Backup of full file. Keep up to WINDOW_SIZE chunks in flight
+                try (AsynchronousFileChannel fileChannel = AsynchronousFileChannel.open(Paths.get(file.getPath()), StandardOpenOption.READ)) {
+                    for (int chunk_no = 0; chunk_no < number_of_chunks && !gave_up.get(); chunk_no++)
+                        readAndSendChunk(chunk_no, fileChannel, buffer, (long) chunk_no * Storage.MAX_CHUNK_SIZE);
                 }
-            }
 
-            System.out.println("BACKUP of " + file.getPath() + " finished.");
+            window.acquire(WINDOW_SIZE); // Wait for the chunks still in flight
+
+            if (gave_up.get())
+                System.out.println("Failed to achieve desired replication degree. Giving up...");
 
-            fileChannel.close();
+            else if (chunks != null)
+                System.out.println("BACKUP of " + number_of_chunks + " chunks of " + file_id + " finished.");
+
+            else
+                System.out.println("BACKUP of " + file.getPath() + " finished.");
         }
 
         catch (IOException | InterruptedException | ExecutionException e) {
             e.printStackTrace();
             System.out.println("ERROR: Failed to read chunks. Aborting backup...");
         }
+
+        finally {
+            initiator_peer.chunk_buffers.release(buffer);
+        }
     }
 
-    private boolean sendPutChunk(byte[] message_bytes) throws InterruptedException {
-        short MAX_TRIES = 5;
-        int sleep_time = 1000, perceived_rp;
+    /**
+     * @return Key of the chunk's replication degree
+     */
+    private String getPath(int chunk_no) {
+        return chunks != null ? initiator_peer.storage.getFilePath(file_id, chunk_no) : file.getPath();
+    }
 
-        for (int tries = 1; tries <= MAX_TRIES; tries++) {
-            // Send message to MDB multicast data channel
-            mdb_channel.send(message_bytes);
-            System.out.printf("< Peer %d sent: %s\n", initiator_peer.id, message.toString());
-            Thread.sleep(sleep_time);
+    private void readAndSendChunk(int chunk_no, AsynchronousFileChannel fileChannel, ByteBuffer buffer, long position) throws InterruptedException, ExecutionException {
+        window.acquire(); // Wait for a free slot in the window
 
-            // Check perceived replication degree
-            perceived_rp = initiator_peer.storage.getPerceivedRP(file.getPath(), message.getChunk_no());
+        Future<Integer> operation = fileChannel.read(buffer, position); // Read from file
+        operation.get(); // Nothing is read if EOF was reached
+
+        sendChunk(chunk_no, buffer);
+    }
 
-            if (perceived_rp < replication_degree)
-                sleep_time *= 2;  // Double sleep time
+    /**
+     * Starts the transmission of a chunk read into a buffer, which is cleared
+     */
+    private void sendChunk(int chunk_no, ByteBuffer buffer) {
+        buffer.flip();
 
-            else                  // Achieved desired replication degree
-                return true;
-        }
+        PutChunkMessage message = new PutChunkMessage(version, initiator_peer.id, file_id, replication_degree, chunk_no);
+        ByteBuffer body = ByteBuffer.allocate(buffer.remaining()); // Kept for retransmissions
+        body.put(buffer).flip();
+        buffer.clear();
 
-        return false; // Max tries => give up
+        new ChunkTransmission(message, body).start();
     }
 
-    private int readAndSendChunk(int chunk_no, AsynchronousFileChannel fileChannel, ByteBuffer buffer, int position) throws InterruptedException, ExecutionException {
-        Future<Integer> operation = fileChannel.read(buffer, position); // Read from file
-        int read_bytes;
+    /**
+     * A chunk in flight. Each chunk completes as soon as the STOREDs for it reach the desired replication
+     * degree, and is only retransmitted, on its own exponential backoff timer, if they did not arrive in time.
+     */
+    private class ChunkTransmission {
+        private final PutChunkMessage message;
+        private final ByteBuffer body;
+        private final AtomicBoolean finished;
+        private volatile ScheduledFuture<?> timeout_task;
+        private Storage.ReplicationWatcher watcher;
+        private int tries;
+        private long timeout;
+
+        ChunkTransmission(PutChunkMessage message, ByteBuffer body) {
+            this.message = message;
+            this.body = body;
+            this.finished = new AtomicBoolean(false);
+            this.tries = 0;
+            this.timeout = INITIAL_TIMEOUT;
+        }
 
-        message.setChunkNo(chunk_no);
+        void start() {
+            // Wake up as soon as enough STOREDs are received
+            watcher = initiator_peer.storage.watchReplicationDegree(file_id, message.getChunk_no(), replication_degree);
+            watcher.getFuture().thenRun(this::finish);
 
-        if ((read_bytes = operation.get()) == -1)
-            read_bytes = 0; // Reached EOF
+            timer.execute(this::transmit);
+        }
 
-        position += read_bytes;
-        byte[] message_bytes = message.getBytes(buffer.array(), read_bytes);
+        private void transmit() {
+            if (finished.get())
+                return;
 
-        if (!sendPutChunk(message_bytes)) {
-            System.out.println("Failed to achieve desired replication degree. Giving up...");
+            tries++;
 
-            return -1; // Give up
+            // Send message to MDB multicast data channel, the header is only encoded once
+            mdb_channel.send(ByteBuffer.wrap(message.encodeHeader()), body.duplicate());
+            System.out.printf("< Peer %d sent: %s\n", initiator_peer.id, message.toString());
+
+            timeout_task = timer.schedule(this::check, timeout, TimeUnit.MILLISECONDS);
         }
 
-        buffer.clear();
-        return position;
+        private void check() {
+            if (finished.get())
+                return; // STOREDs finished it while the timer was pending
+
+            // Check perceived replication degree
+            int perceived_rp = initiator_peer.storage.getPerceivedRP(getPath(message.getChunk_no()), message.getChunk_no());
+
+            if (perceived_rp >= replication_degree) // Achieved desired replication degree
+                finish();
+
+            else if (tries == MAX_TRIES || gave_up.get()) { // Max tries => give up
+                gave_up.set(true);
+                finish();
+            }
+
+            else {
+                timeout *= 2; // Double timeout
+                transmit();
+            }
+        }
+
+        private void finish() {
+            if (!finished.compareAndSet(false, true))
+                return; // Already finished
+
+            if (timeout_task != null)
+                timeout_task.cancel(false);
+
+            initiator_peer.storage.unwatchReplicationDegree(file_id, message.getChunk_no(), watcher);
+            window.release();
+        }
     }
 }
@@ -0,0 +1,139 @@
+package subprotocols;
+
+import peer.storage.Storage;
+import utils.BufferPool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * Writes the chunks of a restored file straight to their offsets, in whatever order they arrive.
+ * Each chunk goes through a pooled direct buffer and is written at chunk_no * MAX_CHUNK_SIZE with a
+ * positional write, so no chunk is kept in memory after it is written and memory use doesn't depend on
+ * the size of the file. Only the chunks requested at once by the restore are ever held in memory.
+ * The chunks are written to a temporary file next to the restored one, which only replaces it once every
+ * chunk has been written, so a failed restore leaves the previous contents of the file untouched.
+ */
+class ChunkFileWriter implements Closeable {
+    private static final String TEMPORARY_SUFFIX = ".restoring";
+    private final Path path;
+    private final Path temporary_path;
+    private final FileChannel fileChannel;
+    private final int number_of_chunks;
+    private final BufferPool buffers;
+    private final BitSet written; // Chunks already written, or being written
+    private int written_chunks;
+    private boolean committed;
+
+    /**
+     * Opens a temporary file to restore a file into
+     *
+     * @param path Path of the restored file
+     * @param number_of_chunks Number of chunks of the file
+     * @param buffers Pool of direct buffers of MAX_CHUNK_SIZE bytes
+     */
+    ChunkFileWriter(Path path, int number_of_chunks, BufferPool buffers) throws IOException {
+        this.path = path;
+        this.temporary_path = path.resolveSibling(path.getFileName() + TEMPORARY_SUFFIX);
+        this.fileChannel = FileChannel.open(temporary_path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.number_of_chunks = number_of_chunks;
+        this.buffers = buffers;
+        this.written = new BitSet(number_of_chunks);
+        this.written_chunks = 0;
+    }
+
+    /**
+     * Writes a chunk to its offset in the file. Can be called concurrently for different chunks.
+     *
+     * @param chunk_no Chunk number
+     * @param chunk Body of the chunk, between its position and limit
+     * @return false if the chunk was already written
+     */
+    boolean write(int chunk_no, ByteBuffer chunk) throws IOException {
+        if (chunk_no < 0 || chunk_no >= number_of_chunks)
+            throw new IOException("Chunk " + chunk_no + " is not part of the file");
+
+        if (chunk.remaining() > Storage.MAX_CHUNK_SIZE)
+            throw new IOException("Chunk " + chunk_no + " is larger than " + Storage.MAX_CHUNK_SIZE + " bytes");
+
+        synchronized (this) {
+            if (written.get(chunk_no))
+                return false; // Duplicate chunk
+
+            written.set(chunk_no);
+        }
+
+        long position = (long) chunk_no * Storage.MAX_CHUNK_SIZE;
+        ByteBuffer buffer = buffers.lease();
+
+        try {
+            buffer.put(chunk.duplicate());
+            buffer.flip();
+
+            while (buffer.hasRemaining())
+                fileChannel.write(buffer, position + buffer.position());
+        }
+
+        catch (IOException e) {
+            synchronized (this) {
+                written.clear(chunk_no); // Can be written again
+            }
+
+            throw e;
+        }
+
+        finally {
+            buffers.release(buffer);
+        }
+
+        synchronized (this) {
+            written_chunks++;
+        }
+
+        return true;
+    }
+
+    synchronized boolean isWritten(int chunk_no) {
+        return written.get(chunk_no);
+    }
+
+    synchronized int getWrittenChunks() {
+        return written_chunks;
+    }
+
+    synchronized boolean isComplete() {
+        return written_chunks == number_of_chunks;
+    }
+
+    /**
+     * Replaces the restored file with the temporary file. Only called once every chunk has been written
+     */
+    synchronized void commit() throws IOException {
+        if (!isComplete())
+            throw new IOException("Only " + written_chunks + " of " + number_of_chunks + " chunks were written");
+
+        fileChannel.force(false);
+        fileChannel.close();
+        Files.move(temporary_path, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        committed = true;
+    }
+
+    /**
+     * Closes the temporary file, and deletes it if it was not committed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        fileChannel.close();
+
+        if (!committed)
+            Files.deleteIfExists(temporary_path);
+    }
+}
@@ -4,7 +4,6 @@ import channels.MC_Channel;
 import messages.DeleteMessage;
 import peer.Peer;
 
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 public class Delete extends Subprotocol {
@@ -21,10 +20,8 @@ public class Delete extends Subprotocol {
     public void run() {
         int MAX_TRIES = 3;
         byte[] message_bytes = message.getBytes(null, 0);
-        ScheduledThreadPoolExecutor scheduledPool = new ScheduledThreadPoolExecutor(MAX_TRIES);
-
         for(int i = 0; i < MAX_TRIES; i++) {
-            scheduledPool.schedule(() -> {
+            initiator_peer.scheduler.schedule(() -> {
                 // Send message
                 control_channel.send(message_bytes);
                 System.out.printf("< Peer %d sent: %s\n", initiator_peer.id, message.toString());
@@ -0,0 +1,140 @@
+package subprotocols;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Spreads the chunk requests of a restore across the peers that hold each chunk.
+ * Each holder is scored by its average response time times the requests it still has to answer, and a
+ * chunk is requested from the holder with the lowest score. Fast holders get more requests, and a slow or
+ * unresponsive holder stops getting them until it catches up.
+ */
+class HolderSelector {
+    static final int NO_HOLDER = -1;
+    private static final double SMOOTHING = 0.2; // Weight of the newest sample in the average
+    private static final double INITIAL_LATENCY = 1e6; // ns, until the first response
+    private final ConcurrentHashMap<Integer, Holder> holders;
+
+    private static class Holder {
+        private double latency; // Exponential moving average, ns
+        private int in_flight;
+        private int received;
+
+        Holder() {
+            this.latency = INITIAL_LATENCY;
+        }
+    }
+
+    HolderSelector() {
+        this.holders = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Picks the holder a chunk should be requested from and counts the request as in flight
+     *
+     * @param candidates Peers that hold the chunk
+     * @param excluded Peer that shouldn't be picked if there is any other candidate
+     * @return Peer to request the chunk from, or NO_HOLDER if there are no candidates
+     */
+    int select(int[] candidates, int excluded) {
+        if (candidates.length == 0)
+            return NO_HOLDER;
+
+        int best = NO_HOLDER;
+        double best_score = Double.MAX_VALUE;
+        int start = ThreadLocalRandom.current().nextInt(candidates.length); // Break ties randomly
+
+        for (int i = 0; i < candidates.length; i++) {
+            int candidate = candidates[(start + i) % candidates.length];
+
+            if (candidate == excluded && candidates.length > 1)
+                continue;
+
+            Holder holder = holders.computeIfAbsent(candidate, id -> new Holder());
+            double score;
+
+            synchronized (holder) {
+                score = holder.latency * (holder.in_flight + 1);
+            }
+
+            if (score < best_score) {
+                best = candidate;
+                best_score = score;
+            }
+        }
+
+        Holder holder = holders.get(best);
+
+        synchronized (holder) {
+            holder.in_flight++;
+        }
+
+        return best;
+    }
+
+    /**
+     * Records that a holder answered a request
+     *
+     * @param latency Time between the request and the response, in ns
+     */
+    void completed(int holder_id, long latency) {
+        Holder holder = holders.get(holder_id);
+
+        if (holder == null)
+            return;
+
+        synchronized (holder) {
+            holder.latency += SMOOTHING * (latency - holder.latency);
+            holder.in_flight = Math.max(0, holder.in_flight - 1);
+            holder.received++;
+        }
+    }
+
+    /**
+     * Records that a holder didn't answer a request in time, which doubles its average response time
+     */
+    void failed(int holder_id) {
+        Holder holder = holders.get(holder_id);
+
+        if (holder == null)
+            return;
+
+        synchronized (holder) {
+            holder.latency *= 2;
+            holder.in_flight = Math.max(0, holder.in_flight - 1);
+        }
+    }
+
+    /**
+     * Records that a request to a holder no longer needs an answer, without judging the holder
+     */
+    void cancelled(int holder_id) {
+        Holder holder = holders.get(holder_id);
+
+        if (holder == null)
+            return;
+
+        synchronized (holder) {
+            holder.in_flight = Math.max(0, holder.in_flight - 1);
+        }
+    }
+
+    /**
+     * @return Number of chunks received from each holder
+     */
+    String getState() {
+        StringBuilder state = new StringBuilder();
+
+        for (Map.Entry<Integer, Holder> entry : holders.entrySet()) {
+            Holder holder = entry.getValue();
+
+            synchronized (holder) {
+                state.append(String.format("Peer %d - CHUNKS: %d AVERAGE LATENCY: %.1f ms\n", entry.getKey(),
+                        holder.received, holder.latency / 1e6));
+            }
+        }
+
+        return state.toString();
+    }
+}
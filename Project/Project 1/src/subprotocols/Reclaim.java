@@ -1,9 +1,17 @@
 package subprotocols;
 
 import channels.MC_Channel;
+import messages.RemovedBatchMessage;
 import messages.RemovedMessage;
 import peer.Peer;
 import peer.storage.Chunk;
+import peer.storage.ReclaimPlanner;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Reclaim extends Subprotocol {
     private final long max_space;
@@ -19,19 +27,49 @@ public class Reclaim extends Subprotocol {
         // Store
         initiator_peer.storage.setMaxSpace(max_space);
 
+        // Chunks may be stored while the plan is carried out, so plan again until enough space is free
         while((max_space == 0) || (initiator_peer.storage.getUsedSpace().get() > max_space)) {
-            Chunk chunk = initiator_peer.storage.removeRandomChunk(); // Remove a chunk
+            long needed = initiator_peer.storage.getUsedSpace().get() - max_space;
+            List<Chunk> plan = initiator_peer.storage.planReclaim();
 
-            if (chunk == null){
+            if (plan.isEmpty()) {
                 System.out.println("No more chunks to delete.");
                 break;
             }
 
-            // Send REMOVED msg
-            RemovedMessage message = new RemovedMessage(version, initiator_peer.id, chunk.getFile_id(), chunk.getChunk_no());
-            control_channel.send(message.getBytes(null, 0));
-            System.out.printf("< Peer %d sent: %s\n", initiator_peer.id, message.toString());
+            System.out.print(ReclaimPlanner.describe(plan, needed));
+
+            List<Chunk> removed = initiator_peer.storage.removeChunks(plan); // Remove the chunks
+            Map<String, List<Integer>> removed_chunks = new LinkedHashMap<>(); // By file, to be announced in batches
+
+            for (Chunk chunk : removed) {
+                if (version.equals("2.0")) {
+                    removed_chunks.computeIfAbsent(chunk.getFile_id(), file_id -> new ArrayList<>()).add(chunk.getChunk_no());
+                    continue;
+                }
+
+                // Send REMOVED msg
+                RemovedMessage message = new RemovedMessage(version, initiator_peer.id, chunk.getFile_id(), chunk.getChunk_no());
+                control_channel.send(message.getBytes(null, 0));
+                System.out.printf("< Peer %d sent: %s\n", initiator_peer.id, message.toString());
+            }
+
+            for (Map.Entry<String, List<Integer>> entry : removed_chunks.entrySet()) {
+                int[] chunk_nos = entry.getValue().stream().mapToInt(Integer::intValue).toArray();
+
+                // Send REMOVED msgs with as many chunks as fit in each
+                for (RemovedBatchMessage message : RemovedBatchMessage.create(version, initiator_peer.id, entry.getKey(), chunk_nos)) {
+                    control_channel.send(ByteBuffer.wrap(message.encodeHeader()), message.getBody());
+                    System.out.printf("< Peer %d sent: %s\n", initiator_peer.id, message.toString());
+                }
+            }
+
+            if (removed.isEmpty()) {
+                System.out.println("No more chunks to delete.");
+                break;
+            }
         }
+        initiator_peer.saveStorage();
         System.out.println("Finished RECLAIM of " + max_space + '.');
     }
 }
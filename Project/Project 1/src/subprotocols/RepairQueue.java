@@ -0,0 +1,254 @@
+package subprotocols;
+
+import peer.Peer;
+import peer.storage.Chunk;
+import peer.storage.Storage;
+import utils.Pair;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue of the stored chunks whose perceived replication degree dropped below the desired one.
+ * Chunks are not backed up as soon as a REMOVED arrives. They wait a random delay of up to
+ * Peer.MAX_REPLY_DELAY ms, so that if another peer starts backing them up first this peer doesn't, and are
+ * then backed up in batches of up to BATCH_SIZE chunks, those with the fewest replicas first.
+ * Each tick only looks at the chunks whose delay is over and at the ready chunks it starts, so a large
+ * backlog doesn't hold the shared scheduler.
+ * Repairs are limited to BANDWIDTH bytes per second of PUTCHUNK bodies, not counting retransmissions, so
+ * they don't take the channels away from regular backups.
+ */
+public class RepairQueue {
+    public static final long BANDWIDTH = Long.getLong("peer.repair_bandwidth", 4 * 1024 * 1024); // Bytes per second
+    private static final int BATCH_SIZE = Backup.WINDOW_SIZE; // Chunks in flight at once
+    private static final long TICK = 50; // ms between dispatches
+    private final Peer peer;
+    private final Map<Pair<String, Integer>, Repair> pending; // Waiting and ready chunks
+    private final PriorityQueue<Repair> waiting; // By ready_at
+    private final PriorityQueue<Repair> ready; // Fewest replicas first, then those waiting the longest
+    private ScheduledFuture<?> dispatch_task;
+    private double tokens; // Bytes that can be sent now
+    private long refilled_at; // ns
+    private int in_flight;
+    private long busy_since; // ns, since there are chunks in flight
+    private long busy_time; // ns with chunks in flight
+    private long repaired_chunks;
+    private long repaired_bytes;
+    private long skipped_chunks;
+    private long failed_chunks;
+    private long requeued_batches; // Batches the pool had no room for
+
+    private static class Repair {
+        private final Chunk chunk;
+        private final long received_at; // ms
+        private final long ready_at; // ms
+        private int perceived_rep_deg; // When the chunk became ready
+
+        Repair(Chunk chunk, long received_at, long ready_at) {
+            this.chunk = chunk;
+            this.received_at = received_at;
+            this.ready_at = ready_at;
+        }
+    }
+
+    public RepairQueue(Peer peer) {
+        this.peer = peer;
+        this.pending = new HashMap<>();
+        this.waiting = new PriorityQueue<>(Comparator.comparingLong((Repair repair) -> repair.ready_at));
+        this.ready = new PriorityQueue<>(Comparator.comparingInt((Repair repair) -> repair.perceived_rep_deg)
+                .thenComparingLong(repair -> repair.ready_at));
+        this.tokens = BATCH_SIZE * (double) Storage.MAX_CHUNK_SIZE;
+        this.refilled_at = System.nanoTime();
+    }
+
+    /**
+     * Queues a stored chunk to be backed up again. A chunk that is already queued is only queued once
+     *
+     * @param received_at Time the REMOVED of the chunk was received, in ms
+     */
+    public synchronized void add(Chunk chunk, long received_at) {
+        long ready_at = received_at + ThreadLocalRandom.current().nextInt(Peer.MAX_REPLY_DELAY);
+
+        Repair repair = new Repair(chunk, received_at, ready_at);
+
+        if (pending.putIfAbsent(Pair.create(chunk.getFile_id(), chunk.getChunk_no()), repair) == null)
+            waiting.add(repair);
+
+        if (dispatch_task == null)
+            dispatch_task = peer.scheduler.scheduleWithFixedDelay(this::dispatch, TICK, TICK, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts backing up the ready chunks, as many as the window and the bandwidth allow.
+     * Runs on the shared scheduler, so it never waits for room in the pool: a batch the pool has no room for
+     * goes back to the queue, and its bandwidth is refunded
+     */
+    private void dispatch() {
+        for (List<Repair> batch : takeBatches())
+            if (!start(batch))
+                requeue(batch);
+    }
+
+    private synchronized Iterable<List<Repair>> takeBatches() {
+        long now = System.currentTimeMillis();
+        refill();
+
+        while (!waiting.isEmpty() && waiting.peek().ready_at <= now) {
+            Repair repair = waiting.poll();
+            repair.perceived_rep_deg = repair.chunk.getPerceivedRP(); // Later changes are caught by isNeeded
+            ready.add(repair);
+        }
+
+        Map<String, List<Repair>> batches = new LinkedHashMap<>(); // By file
+        int batched = 0;
+
+        while (!ready.isEmpty()) {
+            Repair repair = ready.peek();
+            Chunk chunk = repair.chunk;
+
+            if (!isNeeded(repair)) {
+                ready.poll();
+                pending.remove(Pair.create(chunk.getFile_id(), chunk.getChunk_no()));
+                skipped_chunks++;
+                continue;
+            }
+
+            if (in_flight + batched == BATCH_SIZE || tokens < chunk.getSize())
+                break; // Wait for a free slot or more bandwidth
+
+            ready.poll();
+            pending.remove(Pair.create(chunk.getFile_id(), chunk.getChunk_no()));
+            tokens -= chunk.getSize();
+            batched++;
+
+            batches.computeIfAbsent(chunk.getFile_id(), file_id -> new ArrayList<>()).add(repair);
+        }
+
+        if (batched > 0 && in_flight == 0)
+            busy_since = System.nanoTime();
+
+        in_flight += batched;
+
+        if (pending.isEmpty()) {
+            dispatch_task.cancel(false);
+            dispatch_task = null;
+        }
+
+        return batches.values();
+    }
+
+    /**
+     * Puts back a batch that could not be started, to be dispatched again on a later tick
+     */
+    private synchronized void requeue(List<Repair> batch) {
+        for (Repair repair : batch) {
+            Chunk chunk = repair.chunk;
+
+            if (pending.putIfAbsent(Pair.create(chunk.getFile_id(), chunk.getChunk_no()), repair) == null)
+                ready.add(repair); // Keeps its place
+
+            tokens += chunk.getSize(); // Nothing was sent
+        }
+
+        requeued_batches++;
+        finished(batch.size());
+
+        if (dispatch_task == null)
+            dispatch_task = peer.scheduler.scheduleWithFixedDelay(this::dispatch, TICK, TICK, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return false if the chunk doesn't need to be backed up by this peer anymore
+     */
+    private boolean isNeeded(Repair repair) {
+        Chunk chunk = repair.chunk;
+
+        if (peer.storage.getStoredChunk(chunk.getFile_id(), chunk.getChunk_no()) != chunk || !chunk.needsBackUp())
+            return false; // Chunk was removed, or STOREDs brought it back to the desired replication degree
+
+        // Another peer started backing up the chunk since the REMOVED was received
+        return !peer.getBackup_channel().seen_putchunks.seenSince(chunk.getFile_id(), chunk.getChunk_no(),
+                repair.received_at);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double capacity = BATCH_SIZE * (double) Storage.MAX_CHUNK_SIZE;
+
+        tokens = Math.min(capacity, tokens + (now - refilled_at) / 1e9 * BANDWIDTH);
+        refilled_at = now;
+    }
+
+    /**
+     * @return false if the pool has no room for the batch
+     */
+    private boolean start(List<Repair> batch) {
+        List<Chunk> chunks = new ArrayList<>();
+
+        for (Repair repair : batch)
+            chunks.add(repair.chunk);
+
+        Backup task = new Backup(peer, peer.getVersion(), chunks, peer.getBackup_channel(), peer.getControl_channel());
+
+        try {
+            return peer.pool.tryExecute(() -> {
+                try {
+                    task.run();
+                }
+
+                finally {
+                    backedUp(chunks);
+                }
+            });
+        }
+
+        catch (RejectedExecutionException e) {
+            return false; // Shutting down
+        }
+    }
+
+    private synchronized void backedUp(List<Chunk> chunks) {
+        for (Chunk chunk : chunks) {
+            if (chunk.needsBackUp())
+                failed_chunks++;
+
+            else {
+                repaired_chunks++;
+                repaired_bytes += chunk.getSize();
+            }
+        }
+
+        finished(chunks.size());
+    }
+
+    /**
+     * Frees the slots of chunks that are no longer in flight
+     */
+    private void finished(int chunks) {
+        in_flight -= chunks;
+
+        if (in_flight == 0)
+            busy_time += System.nanoTime() - busy_since;
+    }
+
+    public synchronized String getState() {
+        long busy = busy_time + (in_flight > 0 ? System.nanoTime() - busy_since : 0);
+
+        return "BACKLOG: " + pending.size() + '\n' +
+                "IN FLIGHT: " + in_flight + '\n' +
+                "REPAIRED: " + repaired_chunks + " chunks, " + repaired_bytes + " bytes\n" +
+                "SKIPPED: " + skipped_chunks + '\n' +
+                "FAILED: " + failed_chunks + '\n' +
+                "REQUEUED: " + requeued_batches + " batches\n" +
+                "THROUGHPUT: " + (busy == 0 ? 0 : (long) (repaired_bytes / (busy / 1e9))) + " bytes/s\n";
+    }
+}
@@ -3,26 +3,31 @@ package subprotocols;
 import channels.MC_Channel;
 import channels.MDR_Channel;
 import messages.GetChunkMessage;
+import messages.Message;
 import peer.Peer;
-import peer.storage.Storage;
-import utils.Pair;
+import utils.Observer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
-import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.util.ArrayList;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-
-public class Restore extends Subprotocol {
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class Restore extends Subprotocol implements Observer {
+    public static final int WINDOW_SIZE = 16; // Maximum number of chunks requested, and held in memory, at once
+    private static final int MAX_TRIES = 5;
+    private static final int INITIAL_TIMEOUT = 500; // ms
     private final MDR_Channel restore_channel;
     private final int number_of_chunks;
-    private final String file_id;
-    private final String file_path;
-    private final GetChunkMessage message;
+    protected final String file_id;
+    protected final String file_path;
+    private final Semaphore window;
+    private final AtomicBoolean failed;
+    private final ConcurrentHashMap<Integer, ChunkRequest> requests; // Chunks requested but not yet received
+    private ChunkFileWriter writer;
 
     public Restore(Peer initiator_peer, String version, String file_path, String file_id, int number_of_chunks,
                    MDR_Channel restore_channel, MC_Channel control_channel) {
@@ -32,34 +37,61 @@ public class Restore extends Subprotocol {
         this.number_of_chunks = number_of_chunks;
         this.file_id = file_id;
         this.file_path = file_path;
-        this.message = new GetChunkMessage(version, initiator_peer.id, file_id, 0);
+        this.window = new Semaphore(WINDOW_SIZE);
+        this.failed = new AtomicBoolean(false);
+        this.requests = new ConcurrentHashMap<>();
     }
 
     @Override
     public void run() {
-        int chunk_no = 0;
+        try {
+            writer = new ChunkFileWriter(Paths.get(file_path), number_of_chunks, initiator_peer.chunk_buffers);
+            subscribe(); // Get notified of received chunks
 
-        while (chunk_no < number_of_chunks) {
-            // Send message
-            control_channel.send(message.getBytes(null, 0));
-            System.out.printf("< Peer %d sent: %s\n", initiator_peer.id, message);
+            // Keep up to WINDOW_SIZE chunks requested at once
+            for (int chunk_no = 0; chunk_no < number_of_chunks && !failed.get(); chunk_no++) {
+                window.acquire();
+
+                ChunkRequest request = new ChunkRequest(chunk_no);
+                requests.put(chunk_no, request);
+                request.send();
+            }
 
-            try {
-                Thread.sleep(500);
+            window.acquire(WINDOW_SIZE); // Wait for the chunks still requested
+        }
 
-                // Check if received chunk
-                boolean has_chunk = restore_channel.received_chunks.containsKey(new Pair<>(file_id, chunk_no));
+        catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            failed.set(true);
+        }
 
-                if (has_chunk) // Chunk received => Skip to next chunk
-                    message.setChunkNo(++chunk_no);
-            }
+        finally {
+            unsubscribe();
 
-            catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+            for (ChunkRequest request : requests.values())
+                request.cancel();
+        }
+
+        try {
+            if (!failed.get() && writer.isComplete())
+                writer.commit(); // Replace the file only once every chunk was received
+        }
+
+        catch (IOException e) {
+            e.printStackTrace();
+            failed.set(true);
+        }
+
+        try {
+            if (writer != null)
+                writer.close(); // Deletes the temporary file if the restore failed
         }
 
-        if (restoreFileChunks())
+        catch (IOException e) {
+            failed.set(true);
+        }
+
+        if (!failed.get() && writer.isComplete())
             System.out.println("RESTORE of " + file_path + " finished.");
 
         else
@@ -67,44 +99,108 @@ public class Restore extends Subprotocol {
     }
 
     /**
-     * Write restored file chunks
+     * Starts receiving the requested chunks
      */
-    private boolean restoreFileChunks() {
-        ArrayList<byte[]> chunks = new ArrayList<>(); // Array of chunks by order
-        int buffer_size = 0;
-
-        // Add chunks to array
-        for (int chunk_no = 0; chunk_no < number_of_chunks; chunk_no++) {
-            byte[] chunk = restore_channel.received_chunks.remove(Pair.create(file_id, chunk_no));
-            chunks.add(chunk);
-            buffer_size += chunk.length;
-        }
+    protected void subscribe() {
+        restore_channel.received_chunks.retain(file_id);
+        restore_channel.subscribe(this);
+    }
 
-        Path path = Paths.get(file_path);
+    protected void unsubscribe() {
+        restore_channel.unsubscribe(this);
+        restore_channel.received_chunks.release(file_id);
+    }
 
-        try {
-            AsynchronousFileChannel fileChannel = AsynchronousFileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
-            ByteBuffer buffer = ByteBuffer.allocate(buffer_size);
+    /**
+     * Creates the message requesting a chunk. Called again every time the chunk is requested again.
+     *
+     * @return Message requesting a chunk
+     */
+    protected Message createRequest(int chunk_no) {
+        return new GetChunkMessage(version, initiator_peer.id, file_id, chunk_no);
+    }
 
-            for (byte[] chunk : chunks)
-                buffer.put(chunk);
+    @Override
+    public void notify(String file_id, int chunk_no) {
+        if (!file_id.equals(this.file_id))
+            return; // Chunk from another file
 
-            buffer.flip();
+        byte[] chunk = restore_channel.received_chunks.take(file_id, chunk_no);
 
-            Future<Integer> operation = fileChannel.write(buffer, 0);
-            buffer.clear();
+        if (chunk != null)
+            receive(chunk_no, ByteBuffer.wrap(chunk));
+    }
+
+    /**
+     * Writes a received chunk to the file, if it was requested and not received yet
+     */
+    protected void receive(int chunk_no, ByteBuffer chunk) {
+        ChunkRequest request = requests.remove(chunk_no);
 
-            operation.get();
+        if (request == null)
+            return; // Duplicate chunk
 
-            fileChannel.close();
+        request.cancel();
 
-            return true;
+        try {
+            writer.write(chunk_no, chunk);
         }
 
-        catch (IOException | ExecutionException | InterruptedException e) {
+        catch (IOException e) {
             e.printStackTrace();
+            failed.set(true);
+        }
+
+        window.release();
+    }
+
+    /**
+     * A requested chunk. Each chunk is requested again, on its own exponential backoff timer, until it
+     * is received or it runs out of tries.
+     */
+    private class ChunkRequest {
+        private final int chunk_no;
+        private volatile ScheduledFuture<?> timeout_task;
+        private int tries;
+        private long timeout;
+
+        ChunkRequest(int chunk_no) {
+            this.chunk_no = chunk_no;
+            this.tries = 0;
+            this.timeout = INITIAL_TIMEOUT;
+        }
+
+        void send() {
+            tries++;
+
+            // Send message
+            Message message = createRequest(chunk_no);
+            control_channel.send(message.getBytes(null, 0));
+            System.out.printf("< Peer %d sent: %s\n", initiator_peer.id, message);
+
+            timeout_task = initiator_peer.scheduler.schedule(this::check, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        private void check() {
+            if (requests.get(chunk_no) != this)
+                return; // Already received
+
+            if (tries == MAX_TRIES || failed.get()) { // Give up
+                if (requests.remove(chunk_no, this)) {
+                    failed.set(true);
+                    window.release();
+                }
+            }
+
+            else {
+                timeout *= 2; // Double timeout
+                send();
+            }
+        }
 
-            return false;
+        void cancel() {
+            if (timeout_task != null)
+                timeout_task.cancel(false);
         }
     }
 }
@@ -2,110 +2,101 @@ package subprotocols;
 
 import channels.MC_Channel;
 import channels.MDR_Channel;
-import messages.ChunkMessage;
+import channels.TransferServer;
 import messages.GetChunkEnhancedMsg;
 import messages.Message;
 import peer.Peer;
+import peer.storage.BackedUpFile;
 
-import java.io.DataInputStream;
-import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-
-public class RestoreEnhanced extends Subprotocol {
-    private final int number_of_chunks;
-    private final String file_path;
-    private GetChunkEnhancedMsg message;
-    private ServerSocket socket;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Restore where holders send the chunks through TCP instead of the MDR channel.
+ * Chunks arrive through the peer's transfer server, over connections that holders reuse for every chunk,
+ * so requests are pipelined in the same window as a normal restore.
+ * Each request is addressed to a single holder, picked among the peers that sent STORED for the chunk, so
+ * the chunks are pulled from all holders at once instead of from whichever answers first.
+ */
+public class RestoreEnhanced extends Restore implements TransferServer.Receiver {
+    private static final int TARGETED_TRIES = 3; // Afterwards, any holder can answer
+    private final TransferServer transfer_server;
+    private final BackedUpFile file;
+    private final HolderSelector selector;
+    private final ConcurrentHashMap<Integer, Assignment> assignments; // Holder each chunk was last requested from
+
+    private static class Assignment {
+        private final int holder_id;
+        private final long sent_at; // ns
+        private final int tries;
+
+        Assignment(int holder_id, long sent_at, int tries) {
+            this.holder_id = holder_id;
+            this.sent_at = sent_at;
+            this.tries = tries;
+        }
+    }
 
     public RestoreEnhanced(Peer initiator_peer, String version, String file_path, String file_id, int number_of_chunks, MDR_Channel restore_channel, MC_Channel control_channel) {
-        super(control_channel, version, initiator_peer);
-
-        this.number_of_chunks = number_of_chunks;
-        this.file_path = file_path;
+        super(initiator_peer, version, file_path, file_id, number_of_chunks, restore_channel, control_channel);
 
-        try {
-            socket = new ServerSocket(0);
-            socket.setSoTimeout(1000);
-            message = new GetChunkEnhancedMsg(version, initiator_peer.id, file_id, 0,
-                    socket.getLocalPort());
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            System.err.println("Failed to open socket. Aborting backup...");
-        }
+        this.transfer_server = initiator_peer.getTransfer_server();
+        this.file = initiator_peer.storage.getBackedUpFile(file_id);
+        this.selector = new HolderSelector();
+        this.assignments = new ConcurrentHashMap<>();
     }
 
     @Override
     public void run() {
-        if (socket.isClosed())
-            return;
+        super.run();
 
-        int chunk_no = 0;
-        byte[] msg = new byte[65000];
-        Path path = Paths.get(file_path);
-        int position = 0;
-
-        try {
-            AsynchronousFileChannel fileChannel = AsynchronousFileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
-
-            while (chunk_no < number_of_chunks) {
-                // Send message
-                control_channel.send(message.getBytes(null, 0));
-                System.out.printf("< Peer %d sent: %s\n", initiator_peer.id, message.toString());
-
-                Thread.sleep(500); // Sleep
-
-                // Open socket
-                Socket clientSocket = socket.accept();
-                DataInputStream inputStream = new DataInputStream(clientSocket.getInputStream());
+        System.out.print(selector.getState()); // Chunks received from each holder
+    }
 
-                // Receive message
-                int msg_len = inputStream.read(msg);
-                byte[] header = Message.getHeaderBytes(msg);
-                String[] header_fields = Message.getHeaderFields(msg);
+    @Override
+    protected void subscribe() {
+        transfer_server.subscribe(file_id, this);
+    }
 
-                // Log
-                ChunkMessage chunk_msg = new ChunkMessage(header_fields);
-                System.out.printf("< Peer %d received: %s\n", initiator_peer.id, chunk_msg);
+    @Override
+    protected void unsubscribe() {
+        transfer_server.unsubscribe(file_id, this);
+    }
 
-                // Write to file
-                byte[] body = Message.getBodyBytes(msg, msg_len, header.length);
+    @Override
+    protected Message createRequest(int chunk_no) {
+        Assignment previous = assignments.get(chunk_no);
+        int tries = previous == null ? 1 : previous.tries + 1;
+        int excluded = HolderSelector.NO_HOLDER;
+
+        if (previous != null && previous.holder_id != HolderSelector.NO_HOLDER) {
+            selector.failed(previous.holder_id); // Didn't answer in time
+            excluded = previous.holder_id;
+        }
 
-                if (body != null) {
-                    ByteBuffer buffer = ByteBuffer.allocate(body.length);
-                    buffer.put(body);
-                    buffer.flip();
+        int holder_id = HolderSelector.NO_HOLDER;
 
-                    Future<Integer> operation = fileChannel.write(buffer, position);
-                    buffer.clear();
+        if (tries <= TARGETED_TRIES && file != null)
+            holder_id = selector.select(file.getChunkHolders(chunk_no), excluded);
 
-                    position += operation.get();
-                }
+        assignments.put(chunk_no, new Assignment(holder_id, System.nanoTime(), tries));
 
-                // Close connection
-                clientSocket.close();
+        return new GetChunkEnhancedMsg(version, initiator_peer.id, file_id, chunk_no, transfer_server.getPort(),
+                holder_id == HolderSelector.NO_HOLDER ? GetChunkEnhancedMsg.ANY_HOLDER : holder_id);
+    }
 
-                // Update chunk
-                message.setChunkNo(++chunk_no);
-            }
+    @Override
+    public void receiveChunk(int sender_id, int chunk_no, ByteBuffer body) {
+        Assignment assignment = assignments.remove(chunk_no);
 
-            // Close server socket and file
-            socket.close();
-            fileChannel.close();
-        }
+        if (assignment != null && assignment.holder_id != HolderSelector.NO_HOLDER) {
+            if (assignment.holder_id == sender_id)
+                selector.completed(sender_id, System.nanoTime() - assignment.sent_at);
 
-        catch (IOException | InterruptedException | ExecutionException e) {
-            e.printStackTrace();
+            else
+                selector.cancelled(assignment.holder_id); // Answered by an earlier holder
         }
 
-        System.out.println("RESTORE of " + file_path + " finished.");
+        receive(chunk_no, body);
     }
 }
@@ -0,0 +1,205 @@
+package utils;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Worker pool with a bounded number of tasks.
+ * In PLATFORM mode tasks run on a fixed number of threads. In VIRTUAL mode each task runs on its own virtual
+ * thread. In both, a semaphore with threads + queue_capacity permits is acquired before a task is submitted
+ * and released when it finishes, so at most that many tasks are running or queued.
+ * When the bound is reached, the submitting thread waits for a permit, which pushes back on whoever is
+ * producing tasks instead of growing the number of threads or tasks. A pool created with a maximum wait gives
+ * up after it and rejects the task, so a channel's receive loop drops the message and keeps reading instead
+ * of stalling.
+ */
+public class BoundedExecutor implements Executor {
+    private final String name;
+    private final ExecutionMode mode;
+    private final Semaphore permits; // Tasks that can still be submitted
+    private final int max_tasks;
+    private final long max_wait; // ms, 0 to wait until there is room
+    private final AtomicLong blocked; // Submissions that had to wait for room
+    private final AtomicLong rejected; // Submissions that gave up waiting, found no room or found the pool shut down
+    private final AtomicLong completed;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a pool in the configured execution mode, whose submissions wait until there is room
+     *
+     * @param name Name of the pool, used for its threads and metrics
+     * @param threads Number of worker threads
+     * @param queue_capacity Maximum number of queued tasks
+     * @param priority Priority of the worker threads. Only a hint to the OS scheduler, which may ignore it
+     */
+    public BoundedExecutor(String name, int threads, int queue_capacity, int priority) {
+        this(name, threads, queue_capacity, priority, 0, ExecutionMode.configured());
+    }
+
+    /**
+     * @param max_wait Maximum time, in ms, a submission waits for room before the task is rejected. 0 waits
+     *                 until there is room
+     */
+    public BoundedExecutor(String name, int threads, int queue_capacity, int priority, long max_wait) {
+        this(name, threads, queue_capacity, priority, max_wait, ExecutionMode.configured());
+    }
+
+    public BoundedExecutor(String name, int threads, int queue_capacity, int priority, ExecutionMode mode) {
+        this(name, threads, queue_capacity, priority, 0, mode);
+    }
+
+    public BoundedExecutor(String name, int threads, int queue_capacity, int priority, long max_wait,
+                           ExecutionMode mode) {
+        this.name = name;
+        this.max_tasks = threads + queue_capacity;
+        this.permits = new Semaphore(max_tasks);
+        this.max_wait = max_wait;
+        this.blocked = new AtomicLong(0);
+        this.rejected = new AtomicLong(0);
+        this.completed = new AtomicLong(0);
+
+        ExecutorService virtual_executor = mode == ExecutionMode.VIRTUAL ? ExecutionMode.newVirtualThreadExecutor() : null;
+
+        if (virtual_executor != null) {
+            this.mode = ExecutionMode.VIRTUAL;
+            this.executor = virtual_executor;
+            return;
+        }
+
+        this.mode = ExecutionMode.PLATFORM;
+
+        AtomicInteger thread_number = new AtomicInteger(0);
+        ThreadFactory factory = task -> {
+            Thread thread = new Thread(task, name + "-" + thread_number.incrementAndGet());
+            thread.setPriority(priority);
+            return thread;
+        };
+
+        // The queue never holds more than queue_capacity tasks, since the permits are taken first
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), factory);
+    }
+
+    /**
+     * Runs a task, waiting for room if the bound is reached
+     *
+     * @throws RejectedExecutionException If the pool is shut down, or there was no room within the maximum wait
+     */
+    @Override
+    public void execute(Runnable task) {
+        try {
+            if (!permits.tryAcquire()) {
+                blocked.incrementAndGet();
+
+                if (max_wait == 0)
+                    permits.acquire(); // Wait for room
+
+                else if (!permits.tryAcquire(max_wait, TimeUnit.MILLISECONDS)) {
+                    rejected.incrementAndGet();
+                    throw new RejectedExecutionException(name + " has no room for more tasks");
+                }
+            }
+        }
+
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(name + " submission interrupted", e);
+        }
+
+        submit(task);
+    }
+
+    /**
+     * Runs a task only if there is room for it right away, without waiting
+     *
+     * @return false if the bound is reached
+     * @throws RejectedExecutionException If the pool is shut down
+     */
+    public boolean tryExecute(Runnable task) {
+        if (!permits.tryAcquire()) {
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        submit(task);
+        return true;
+    }
+
+    /**
+     * Submits a task whose permit was already acquired
+     */
+    private void submit(Runnable task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                }
+
+                finally {
+                    completed.incrementAndGet();
+                    permits.release();
+                }
+            });
+        }
+
+        catch (RejectedExecutionException e) { // Shut down
+            permits.release();
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    public void shutdownNow() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Waits for the submitted tasks to finish and stops the pool
+     *
+     * @return false if the timeout elapsed first
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    public ExecutionMode getMode() {
+        return mode;
+    }
+
+    public int getQueueDepth() {
+        if (mode == ExecutionMode.PLATFORM)
+            return ((ThreadPoolExecutor) executor).getQueue().size();
+
+        return 0; // Virtual threads start right away
+    }
+
+    public int getActiveThreads() {
+        if (mode == ExecutionMode.PLATFORM)
+            return ((ThreadPoolExecutor) executor).getActiveCount();
+
+        return max_tasks - permits.availablePermits();
+    }
+
+    public long getCompletedTasks() {
+        return completed.get();
+    }
+
+    public long getBlockedSubmissions() {
+        return blocked.get();
+    }
+
+    public long getRejectedSubmissions() {
+        return rejected.get();
+    }
+
+    public String getState() {
+        return name + " (" + mode + ") - QUEUED: " + getQueueDepth() +
+                " ACTIVE: " + getActiveThreads() +
+                " COMPLETED: " + getCompletedTasks() +
+                " BLOCKED: " + getBlockedSubmissions() +
+                " REJECTED: " + getRejectedSubmissions() + '\n';
+    }
+}
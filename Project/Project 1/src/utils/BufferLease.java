@@ -0,0 +1,56 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A slice of a pooled buffer handed over to its new owner, which must release it exactly once
+ * after it is done reading it. The slice must not be used after being released.
+ */
+public class BufferLease {
+    private final BufferPool pool;
+    private final ByteBuffer backing_buffer;
+    private final ByteBuffer slice;
+    private final AtomicBoolean released;
+
+    /**
+     * @param pool Pool the backing buffer was leased from
+     * @param backing_buffer Leased buffer
+     * @param offset Offset of the slice in the backing buffer. The slice ends at the limit of the backing buffer
+     */
+    public BufferLease(BufferPool pool, ByteBuffer backing_buffer, int offset) {
+        this.pool = pool;
+        this.backing_buffer = backing_buffer;
+        this.released = new AtomicBoolean(false);
+
+        ByteBuffer view = backing_buffer.duplicate();
+        view.position(offset);
+        this.slice = view.slice();
+    }
+
+    /**
+     * @return View of the slice, positioned at its start
+     */
+    public ByteBuffer getBuffer() {
+        return slice.duplicate();
+    }
+
+    public int size() {
+        return slice.remaining();
+    }
+
+    /**
+     * @return Copy of the slice contents
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[slice.remaining()];
+        slice.duplicate().get(bytes);
+
+        return bytes;
+    }
+
+    public void release() {
+        if (released.compareAndSet(false, true))
+            pool.release(backing_buffer);
+    }
+}
@@ -0,0 +1,95 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of equally sized byte buffers with lease/release semantics.
+ * Leasing from an empty pool allocates a new buffer, and buffers released to a full pool are dropped.
+ */
+public class BufferPool {
+    private final int buffer_size;
+    private final int capacity;
+    private final boolean direct;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers;
+    private final AtomicInteger pooled;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    /**
+     * @param buffer_size Size of each buffer
+     * @param capacity Maximum number of idle buffers kept in the pool
+     */
+    public BufferPool(int buffer_size, int capacity) {
+        this(buffer_size, capacity, false);
+    }
+
+    /**
+     * @param buffer_size Size of each buffer
+     * @param capacity Maximum number of idle buffers kept in the pool
+     * @param direct Whether to allocate direct buffers, which file channels can read to and write from without
+     *               an intermediate copy
+     */
+    public BufferPool(int buffer_size, int capacity, boolean direct) {
+        this.buffer_size = buffer_size;
+        this.capacity = capacity;
+        this.direct = direct;
+        this.buffers = new ConcurrentLinkedQueue<>();
+        this.pooled = new AtomicInteger(0);
+        this.hits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+    }
+
+    /**
+     * Leases a cleared buffer, which must be released back once it is no longer used
+     *
+     * @return Buffer with position 0 and limit equal to its capacity
+     */
+    public ByteBuffer lease() {
+        ByteBuffer buffer = buffers.poll();
+
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return direct ? ByteBuffer.allocateDirect(buffer_size) : ByteBuffer.allocate(buffer_size);
+        }
+
+        hits.incrementAndGet();
+        pooled.decrementAndGet();
+        buffer.clear();
+
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != buffer_size || buffer.isDirect() != direct)
+            return; // Not from this pool
+
+        if (pooled.incrementAndGet() <= capacity)
+            buffers.offer(buffer);
+
+        else
+            pooled.decrementAndGet(); // Pool is full, let the buffer be collected
+    }
+
+    public int getBufferSize() {
+        return buffer_size;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int getIdleBuffers() {
+        return pooled.get();
+    }
+
+    public String getState() {
+        return "HITS: " + getHits() + "\nMISSES: " + getMisses() + "\nIDLE BUFFERS: " + getIdleBuffers() + '\n';
+    }
+}
@@ -0,0 +1,46 @@
+package utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * How message handlers and subprotocols are executed.
+ * PLATFORM runs them on fixed pools of platform threads. VIRTUAL starts a virtual thread per task, which
+ * makes the blocking waits on file I/O and delays cheap. Virtual threads need Java 21, so VIRTUAL falls back
+ * to PLATFORM on older runtimes.
+ * Selected with -Dpeer.execution_mode=platform|virtual.
+ */
+public enum ExecutionMode {
+    PLATFORM,
+    VIRTUAL;
+
+    private static final ExecutionMode CONFIGURED = fromName(System.getProperty("peer.execution_mode", "platform"));
+
+    public static ExecutionMode configured() {
+        return CONFIGURED;
+    }
+
+    private static ExecutionMode fromName(String name) {
+        if (name.equalsIgnoreCase("virtual")) {
+            if (newVirtualThreadExecutor() != null)
+                return VIRTUAL;
+
+            System.err.println("WARNING: Virtual threads are not supported by this Java runtime. Using platform threads.");
+        }
+
+        return PLATFORM;
+    }
+
+    /**
+     * @return Executor that starts a new virtual thread for each task, or null if the runtime doesn't support them
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try { // Looked up reflectively so the code still compiles and runs before Java 21
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+
+        catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+}
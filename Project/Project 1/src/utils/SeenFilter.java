@@ -0,0 +1,141 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Time-windowed set of the chunks seen on a channel, kept as a ring of Bloom filters.
+ * Each slice of the ring holds the chunks seen during SLICE_DURATION ms, and the oldest slice is cleared and
+ * reused as time moves on, so the set remembers the last SLICES * SLICE_DURATION ms using a fixed amount of
+ * memory and without storing any chunk body.
+ * Like any Bloom filter it can answer that a chunk was seen when it wasn't, which at worst suppresses a
+ * reply that another retry will ask for again.
+ */
+public class SeenFilter {
+    private static final int SLICES = 32;
+    private static final long SLICE_DURATION = 25; // ms
+    private static final int BITS_PER_SLICE = 1 << 16;
+    private static final int HASHES = 3;
+    private final String name;
+    private final Slice[] slices;
+    private final AtomicLong hits;
+
+    private static class Slice {
+        private volatile long epoch; // Interval of SLICE_DURATION ms the slice holds
+        private final AtomicLongArray bits;
+
+        Slice() {
+            this.epoch = -1;
+            this.bits = new AtomicLongArray(BITS_PER_SLICE / Long.SIZE);
+        }
+    }
+
+    /**
+     * @param name Name of the set, used for its metrics
+     */
+    public SeenFilter(String name) {
+        this.name = name;
+        this.slices = new Slice[SLICES];
+        this.hits = new AtomicLong(0);
+
+        for (int i = 0; i < SLICES; i++)
+            slices[i] = new Slice();
+    }
+
+    /**
+     * Records that a chunk was seen now
+     */
+    public void add(String file_id, int chunk_no) {
+        Slice slice = getSlice(System.currentTimeMillis() / SLICE_DURATION);
+        long hash = hash(file_id, chunk_no);
+
+        for (int i = 0; i < HASHES; i++) {
+            int bit = index(hash, i);
+            long mask = 1L << (bit % Long.SIZE);
+            slice.bits.getAndUpdate(bit / Long.SIZE, word -> word | mask);
+        }
+    }
+
+    /**
+     * Checks if a chunk was seen at or after a given time. Sightings are only remembered for
+     * SLICES * SLICE_DURATION ms, and are tracked with a resolution of SLICE_DURATION ms.
+     * Only the slices that start at or after the given time are checked, so a sighting from before it, such as
+     * the reply to an earlier request that the requester missed, never counts. Sightings in the slice the given
+     * time falls in don't count either, which at worst lets a duplicate reply through.
+     *
+     * @param since Time in ms, as given by System.currentTimeMillis()
+     * @return true if the chunk was probably seen since then
+     */
+    public boolean seenSince(String file_id, int chunk_no, long since) {
+        long now = System.currentTimeMillis() / SLICE_DURATION;
+        long first = Math.max(Math.floorDiv(since + SLICE_DURATION - 1, SLICE_DURATION), now - SLICES + 1);
+        long hash = hash(file_id, chunk_no);
+
+        for (long epoch = first; epoch <= now; epoch++) {
+            Slice slice = slices[(int) (epoch % SLICES)];
+
+            if (slice.epoch == epoch && contains(slice, hash)) {
+                hits.incrementAndGet();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean contains(Slice slice, long hash) {
+        for (int i = 0; i < HASHES; i++) {
+            int bit = index(hash, i);
+
+            if ((slice.bits.get(bit / Long.SIZE) & (1L << (bit % Long.SIZE))) == 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the slice for an interval, clearing it first if it still holds an older interval
+     */
+    private Slice getSlice(long epoch) {
+        Slice slice = slices[(int) (epoch % SLICES)];
+
+        if (slice.epoch != epoch) {
+            synchronized (slice) {
+                if (slice.epoch != epoch) {
+                    for (int i = 0; i < slice.bits.length(); i++)
+                        slice.bits.set(i, 0);
+
+                    slice.epoch = epoch;
+                }
+            }
+        }
+
+        return slice;
+    }
+
+    private static long hash(String file_id, int chunk_no) {
+        long hash = ((long) file_id.hashCode() << 32) ^ chunk_no;
+
+        // Finalizer of MurmurHash3, spreads the bits of the key over the whole word
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+    /**
+     * @return Bit of a slice set by the i-th hash function, derived from two halves of the hash
+     */
+    private static int index(long hash, int i) {
+        int h1 = (int) hash, h2 = (int) (hash >>> 32) | 1;
+        return (h1 + i * h2) & (BITS_PER_SLICE - 1);
+    }
+
+    public String getState() {
+        return name + " - SUPPRESSED: " + hits.get() + '\n';
+    }
+}